@@ -0,0 +1,176 @@
+package net.kollnig.greasemilkyway;
+
+import android.accessibilityservice.AccessibilityService;
+import android.graphics.Rect;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Performs the actions of action rules. After any action, no other is performed until the screen
+ * has had time to change. A rule whose action keeps firing, e.g. because the app reopens the screen
+ * it leaves, is taken to be in a loop and paused for a while. Failed actions count as well, so
+ * that a rule whose click target or scrollable container is gone is not retried on every scan.
+ * Nothing is done once the user has switched to another app since the scan, so that e.g. a back
+ * press never reaches that app.
+ */
+class ActionExecutor {
+    private static final String TAG = "ActionExecutor";
+    private static final long COOLDOWN_MS = 1000; // After any action
+    private static final long LOOP_WINDOW_MS = 30_000;
+    private static final int LOOP_ACTIONS = 3; // Attempts of a rule within the window that make a loop
+    private static final long LOOP_PAUSE_MS = 5 * 60_000;
+    private static final int MAX_CLICK_DEPTH = 5; // Ancestors searched for a clickable view
+
+    private final AccessibilityService service;
+    private long lastAttemptMs;
+    // Times of the recent attempts of each rule, oldest first
+    private final Map<FilterRule, ArrayDeque<Long>> history = new HashMap<>();
+    private final Map<FilterRule, Long> pausedUntil = new HashMap<>();
+
+    ActionExecutor(AccessibilityService service) {
+        this.service = service;
+    }
+
+    /**
+     * Perform the action of a rule, unless actions are rate-limited, the rule is paused or the
+     * active window no longer belongs to the scanned package.
+     *
+     * @param packageName The scanned package, to qualify plain view IDs
+     * @param bounds      Visible bounds of the view the rule matched
+     * @return Whether the action was performed
+     */
+    boolean execute(FilterRule rule, String packageName, Rect bounds, long nowMs) {
+        if (lastAttemptMs > 0 && nowMs - lastAttemptMs < COOLDOWN_MS) return false;
+        Long paused = pausedUntil.get(rule);
+        if (paused != null) {
+            if (nowMs < paused) return false;
+            pausedUntil.remove(rule);
+        }
+
+        ArrayDeque<Long> times = history.computeIfAbsent(rule, k -> new ArrayDeque<>());
+        while (!times.isEmpty() && nowMs - times.peekFirst() >= LOOP_WINDOW_MS) {
+            times.pollFirst();
+        }
+        if (times.size() >= LOOP_ACTIONS) {
+            Log.w(TAG, "Action " + rule.action + " of " + rule.ruleString + " was attempted " + times.size()
+                    + " times in a row, pausing it");
+            pausedUntil.put(rule, nowMs + LOOP_PAUSE_MS);
+            times.clear();
+            return false;
+        }
+
+        AccessibilityNodeInfo root = service.getRootInActiveWindow();
+        if (root == null) return false;
+        try {
+            CharSequence activePackage = root.getPackageName();
+            if (activePackage == null || !packageName.contentEquals(activePackage)) {
+                Log.d(TAG, "Action " + rule.action + " of " + rule.ruleString + " skipped, "
+                        + activePackage + " is in front now");
+                return false;
+            }
+
+            lastAttemptMs = nowMs;
+            times.addLast(nowMs);
+            boolean performed = perform(root, rule.action, packageName, bounds);
+            Log.d(TAG, "Action " + rule.action + " of " + rule.ruleString + (performed ? " performed" : " failed"));
+            return performed;
+        } finally {
+            root.recycle();
+        }
+    }
+
+    /**
+     * Forget the history of all rules, e.g. after the rules have changed.
+     */
+    void clear() {
+        history.clear();
+        pausedUntil.clear();
+    }
+
+    private boolean perform(AccessibilityNodeInfo root, RuleAction action, String packageName, Rect bounds) {
+        switch (action.type) {
+            case RuleAction.BACK:
+                return service.performGlobalAction(AccessibilityService.GLOBAL_ACTION_BACK);
+            case RuleAction.SCROLL_PAST:
+                return scrollPast(root, bounds);
+            default:
+                return click(root, action.viewIdIn(packageName));
+        }
+    }
+
+    /**
+     * Scroll the innermost scrollable view around a view forward, past it.
+     */
+    private static boolean scrollPast(AccessibilityNodeInfo root, Rect bounds) {
+        AccessibilityNodeInfo scrollable = null;
+        AccessibilityNodeInfo node = AccessibilityNodeInfo.obtain(root);
+        Rect childBounds = new Rect();
+        while (node != null) {
+            if (node.isScrollable()) {
+                if (scrollable != null) scrollable.recycle();
+                scrollable = AccessibilityNodeInfo.obtain(node);
+            }
+            // Descend into the child that contains the view
+            AccessibilityNodeInfo next = null;
+            for (int i = 0; i < node.getChildCount() && next == null; i++) {
+                AccessibilityNodeInfo child = node.getChild(i);
+                if (child == null) continue;
+                child.getBoundsInScreen(childBounds);
+                if (childBounds.contains(bounds)) {
+                    next = child;
+                } else {
+                    child.recycle();
+                }
+            }
+            node.recycle();
+            node = next;
+        }
+        if (scrollable == null) return false;
+        try {
+            return scrollable.performAction(AccessibilityNodeInfo.ACTION_SCROLL_FORWARD);
+        } finally {
+            scrollable.recycle();
+        }
+    }
+
+    private static boolean click(AccessibilityNodeInfo root, String viewId) {
+        List<AccessibilityNodeInfo> nodes = root.findAccessibilityNodeInfosByViewId(viewId);
+        if (nodes == null) return false;
+        boolean clicked = false;
+        for (AccessibilityNodeInfo node : nodes) {
+            if (!clicked && node.isVisibleToUser()) {
+                clicked = clickSelfOrAncestor(node);
+            }
+            node.recycle();
+        }
+        return clicked;
+    }
+
+    /**
+     * Click a view, or its nearest clickable ancestor: views such as tab labels are often not
+     * clickable themselves.
+     */
+    private static boolean clickSelfOrAncestor(AccessibilityNodeInfo node) {
+        if (node.isClickable()) return node.performAction(AccessibilityNodeInfo.ACTION_CLICK);
+        AccessibilityNodeInfo ancestor = node.getParent();
+        for (int depth = 0; ancestor != null && depth < MAX_CLICK_DEPTH; depth++) {
+            if (ancestor.isClickable()) {
+                try {
+                    return ancestor.performAction(AccessibilityNodeInfo.ACTION_CLICK);
+                } finally {
+                    ancestor.recycle();
+                }
+            }
+            AccessibilityNodeInfo parent = ancestor.getParent();
+            ancestor.recycle();
+            ancestor = parent;
+        }
+        if (ancestor != null) ancestor.recycle();
+        return false;
+    }
+}
@@ -0,0 +1,37 @@
+package net.kollnig.greasemilkyway;
+
+import android.graphics.Rect;
+import android.view.View;
+import android.view.WindowManager;
+
+/**
+ * A view that a rule blocked, and the overlay that covers it.
+ */
+class BlockedElement {
+    final String packageName; // Scanned package, which may differ from the rule's for package globs
+    final FilterRule rule;
+    final View overlay;
+    final WindowManager.LayoutParams params;
+    final Rect bounds;
+    ElementId id;
+    long generation; // Scan in which the element was last seen
+
+    BlockedElement(String packageName, FilterRule rule, ElementId id, View overlay,
+                   WindowManager.LayoutParams params, Rect bounds) {
+        this.packageName = packageName;
+        this.rule = rule;
+        this.id = id;
+        this.overlay = overlay;
+        this.params = params;
+        this.bounds = bounds;
+    }
+
+    /**
+     * Whether the overlay of this element is indistinguishable from one for a rule, so that
+     * either can stand in for the other.
+     */
+    boolean looksLike(FilterRule other) {
+        return rule.blockTouches == other.blockTouches && rule.color == other.color
+                && rule.nightColor == other.nightColor;
+    }
+}
@@ -1,11 +1,14 @@
 package net.kollnig.greasemilkyway;
 
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.text.Editable;
 import android.text.SpannableString;
+import android.text.TextWatcher;
 import android.text.method.LinkMovementMethod;
 import android.text.style.ClickableSpan;
 import android.view.MenuItem;
@@ -18,9 +21,28 @@ import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import com.google.android.material.appbar.MaterialToolbar;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 public class CustomRulesActivity extends AppCompatActivity {
+    private static final int VALIDATION_DELAY_MS = 1000;
+
     private EditText rulesEditor;
+    private TextView rulesWarning;
+    private View shadowStart;
+    private View shadowPromote;
+    private View shadowStop;
+    private TextView shadowReport;
+    private EditText maxOverlays;
     private ServiceConfig config;
+    private final Runnable validateRules = this::validateViewIds;
+    private final ExecutorService validationExecutor = Executors.newSingleThreadExecutor();
+    private Future<?> validation;
+    // Incremented with every validation, so that results of outdated ones are dropped
+    private int validationGeneration;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -41,12 +63,41 @@ public class CustomRulesActivity extends AppCompatActivity {
 
         // Initialize views
         rulesEditor = findViewById(R.id.rules_editor);
+        rulesWarning = findViewById(R.id.rules_warning);
+        shadowStart = findViewById(R.id.shadow_start);
+        shadowPromote = findViewById(R.id.shadow_promote);
+        shadowStop = findViewById(R.id.shadow_stop);
+        shadowReport = findViewById(R.id.shadow_report);
+        shadowStart.setOnClickListener(v -> startShadowTest());
+        shadowPromote.setOnClickListener(v -> promoteShadowTest());
+        shadowStop.setOnClickListener(v -> stopShadowTest());
+        maxOverlays = findViewById(R.id.max_overlays);
+        maxOverlays.setText(String.valueOf(config.getMaxOverlays()));
         
-        // Load existing custom rules
-        String[] customRules = config.getCustomRules();
+        // Load existing custom rules, or the ones under test
+        ShadowEvaluator shadow = getShadowTest();
+        String[] customRules = shadow != null ? shadow.customRules : config.getCustomRules();
         if (customRules != null) {
             rulesEditor.setText(String.join("\n", customRules));
         }
+
+        // Flag rules pointing at view IDs that the installed apps do not have
+        validateViewIds();
+        rulesEditor.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                rulesEditor.removeCallbacks(validateRules);
+                rulesEditor.postDelayed(validateRules, VALIDATION_DELAY_MS);
+            }
+        });
         
         // Setup README link (after loading rules to avoid any interference)
         TextView readmeLink = findViewById(R.id.readme_link);
@@ -55,10 +106,108 @@ public class CustomRulesActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        rulesEditor.removeCallbacks(validateRules);
+        validationExecutor.shutdownNow();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showShadowTest();
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
-        saveRules();
+        saveMaxOverlays();
+        ShadowEvaluator shadow = getShadowTest();
+        if (shadow == null) {
+            saveRules();
+        } else if (!rulesEditor.getText().toString().equals(String.join("\n", shadow.customRules))) {
+            // Rules under test are only applied once promoted, so edits go to a new test
+            startShadowTest();
+        }
+    }
+
+    private static ShadowEvaluator getShadowTest() {
+        DistractionControlService service = DistractionControlService.getInstance();
+        return service != null ? service.getShadowTest() : null;
+    }
+
+    /**
+     * Test the rules in the editor alongside the rules in force, without applying them.
+     */
+    private void startShadowTest() {
+        DistractionControlService service = DistractionControlService.getInstance();
+        if (service == null) {
+            Toast.makeText(this, R.string.enable_service_first, Toast.LENGTH_LONG).show();
+            return;
+        }
+        String[] rules = rulesEditor.getText().toString().split("\n");
+        try {
+            new FilterRuleParser().parseRules(rules);
+        } catch (Exception e) {
+            Toast.makeText(this, R.string.invalid_rules, Toast.LENGTH_LONG).show();
+            return;
+        }
+        service.startShadowTest(rules);
+        showShadowTest();
+    }
+
+    private void promoteShadowTest() {
+        DistractionControlService service = DistractionControlService.getInstance();
+        ShadowEvaluator shadow = getShadowTest();
+        if (service != null && shadow != null) {
+            // Edits made since the test started were not tested and are dropped
+            rulesEditor.setText(String.join("\n", shadow.customRules));
+            service.promoteShadowTest();
+            Toast.makeText(this, R.string.rules_saved, Toast.LENGTH_SHORT).show();
+        }
+        showShadowTest();
+    }
+
+    private void stopShadowTest() {
+        DistractionControlService service = DistractionControlService.getInstance();
+        if (service != null) {
+            service.stopShadowTest();
+        }
+        showShadowTest();
+    }
+
+    private void showShadowTest() {
+        ShadowEvaluator shadow = getShadowTest();
+        shadowStart.setVisibility(shadow == null ? View.VISIBLE : View.GONE);
+        shadowPromote.setVisibility(shadow != null ? View.VISIBLE : View.GONE);
+        shadowStop.setVisibility(shadow != null ? View.VISIBLE : View.GONE);
+        if (shadow == null) {
+            shadowReport.setVisibility(View.GONE);
+            return;
+        }
+
+        ShadowEvaluator.Report report = shadow.getReport();
+        shadowReport.setVisibility(View.VISIBLE);
+        if (report.evaluations == 0) {
+            shadowReport.setText(R.string.shadow_test_waiting);
+            return;
+        }
+        int evaluations = report.evaluations;
+        int change = report.activeNs > 0
+                ? (int) ((report.candidateNs - report.activeNs) * 100 / report.activeNs) : 0;
+        StringBuilder text = new StringBuilder(getString(R.string.shadow_test_report, evaluations,
+                (int) (report.activeNodes / evaluations), report.activeNs / evaluations / 1e6,
+                (int) (report.candidateNodes / evaluations), report.candidateNs / evaluations / 1e6, change));
+        if (!report.onlyCandidate.isEmpty()) {
+            text.append("\n\n").append(getString(R.string.shadow_test_only_candidate,
+                    "• " + String.join("\n• ", report.onlyCandidate)));
+        }
+        if (!report.onlyActive.isEmpty()) {
+            text.append("\n\n").append(getString(R.string.shadow_test_only_active,
+                    "• " + String.join("\n• ", report.onlyActive)));
+        }
+        shadowReport.setText(text);
     }
 
     private void saveRules() {
@@ -81,6 +230,53 @@ public class CustomRulesActivity extends AppCompatActivity {
         }
     }
 
+    private void saveMaxOverlays() {
+        int max;
+        try {
+            max = Integer.parseInt(maxOverlays.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            max = ServiceConfig.DEFAULT_MAX_OVERLAYS;
+        }
+        max = Math.max(1, max);
+        if (max == config.getMaxOverlays()) return;
+        config.setMaxOverlays(max);
+
+        // The service applies the limit along with the rules
+        DistractionControlService service = DistractionControlService.getInstance();
+        if (service != null) {
+            service.updateRules();
+        }
+    }
+
+    private void validateViewIds() {
+        String[] lines = rulesEditor.getText().toString().split("\n");
+        PackageManager packageManager = getPackageManager();
+        if (validation != null) {
+            validation.cancel(true);
+        }
+        int generation = ++validationGeneration;
+        validation = validationExecutor.submit(() -> {
+            List<FilterRule> rules = new FilterRuleParser().parseRules(lines);
+            List<FilterRule> missing = ViewIdValidator.findMissing(packageManager, rules);
+            runOnUiThread(() -> showMissingViewIds(generation, missing));
+        });
+    }
+
+    private void showMissingViewIds(int generation, List<FilterRule> missing) {
+        if (isFinishing() || isDestroyed() || generation != validationGeneration) return;
+        if (missing.isEmpty()) {
+            rulesWarning.setVisibility(View.GONE);
+            return;
+        }
+
+        List<String> viewIds = new ArrayList<>();
+        for (FilterRule rule : missing) {
+            viewIds.add("• " + rule.targetViewId);
+        }
+        rulesWarning.setText(getString(R.string.missing_view_ids, String.join("\n", viewIds)));
+        rulesWarning.setVisibility(View.VISIBLE);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (item.getItemId() == android.R.id.home) {
@@ -2,14 +2,21 @@ package net.kollnig.greasemilkyway;
 
 import android.accessibilityservice.AccessibilityService;
 import android.accessibilityservice.AccessibilityServiceInfo;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
-import android.graphics.Color;
 import android.graphics.PixelFormat;
 import android.graphics.Rect;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.View;
@@ -17,8 +24,13 @@ import android.view.WindowManager;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityNodeInfo;
 
+import androidx.core.content.ContextCompat;
+
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -30,17 +42,69 @@ import java.util.Set;
 public class DistractionControlService extends AccessibilityService {
     private static final String TAG = "DistractionControlService";
     private static final int PROCESSING_DELAY_MS = 20;
-    private static final int MAX_OVERLAY_COUNT = 100; // Prevent memory issues
+    private static final int FRAME_DELAY_MS = 16;
+    private static final int MAX_TRACKED_WINDOWS = 16;
+    private static final int MAX_DIRTY_REGIONS = 32;
 
     // Singleton instance
     private static DistractionControlService instance;
-    private final List<FilterRule> rules = new ArrayList<>();
+    // Rules in force, replaced as a whole when they change; each scan works on the snapshot it started with
+    private volatile RuleSnapshot ruleSnapshot = RuleSnapshot.EMPTY;
+    private RuleSnapshot scanSnapshot = RuleSnapshot.EMPTY;
+    // Candidate rules evaluated alongside the rules in force, if a shadow test is running
+    private ShadowEvaluator shadow;
+    private final Runnable continueShadow = this::runShadow;
+    // Foreground activity of each window, as reported by TYPE_WINDOW_STATE_CHANGED
+    private final Map<Integer, String> windowActivities = new LinkedHashMap<Integer, String>(MAX_TRACKED_WINDOWS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+            return size() > MAX_TRACKED_WINDOWS;
+        }
+    };
+    // Whether a class name reported in a window state change is an activity, per package/class
+    private final Map<String, Boolean> activityClasses = new HashMap<>();
     private final Handler ui = new Handler(Looper.getMainLooper());
     private final OverlayManager overlayManager = new OverlayManager();
-    private final Map<View, Rect> overlayBounds = new HashMap<>();
-    private final Map<String, List<BlockedElement>> blockedElements = new HashMap<>();
+    // Blocked element of each overlay, to find the elements in a region through the overlay manager
+    private final Map<View, BlockedElement> overlayElements = new HashMap<>();
+    // Blocked elements and automata per package; elements by rule and identity, see {@link #elementKey(FilterRule, ElementId)}
+    private final PackageStateCache packageStates = new PackageStateCache(this::onPackageEvicted);
+    private final EventClassifier eventClassifier = new EventClassifier();
+    private final Runnable evictBackground = () -> {
+        packageStates.evictBackground(SystemClock.uptimeMillis());
+        Log.d(TAG, "Engine state: " + packageStates.describe() + "\n" + eventClassifier.describe());
+    };
+    // Incremented with every scan, to find the elements a completed scan did not see again
+    private long scanGeneration;
     private WindowManager windowManager;
+    private final ScanBudget scanBudget = new ScanBudget();
+    // State of the current scan, whose selector traversal may be time-sliced across several frames
+    private String scanPackage;
+    private String scanActivity;
+    private final Set<FilterRule> scanActive = new HashSet<>();
+    private List<FilterRule> scanRules = new ArrayList<>();
+    private long scanElapsedNs;
+    // Visible region of the scanned window, and the matches of the scan that needed no overlay of their own
+    private final Rect scanViewport = new Rect();
+    private int scanCulled;
+    private int scanDeferred;
+    private int scanEvicted;
+    private int scanRejected;
+    // First action rule the scan matched, performed when the scan is complete
+    private FilterRule scanActionRule;
+    private final Rect scanActionBounds = new Rect();
+    private final ActionExecutor actionExecutor = new ActionExecutor(this);
+    // Maximum number of overlays, see {@link ServiceConfig#getMaxOverlays()}
+    private int maxOverlays = ServiceConfig.DEFAULT_MAX_OVERLAYS;
+    private SelectorAutomaton scanAutomaton;
+    private SelectorAutomaton.Scan scan;
+    private final Runnable continueScan = this::runScan;
+    private final SelectorAutomaton.MatchListener selectorListener = this::blockElement;
+    // Regions of the screen that changed since the last scan, so that unchanged subtrees can be skipped
+    private final List<Rect> dirtyRegions = new ArrayList<>();
+    private boolean dirtyAll = true;
     private final Runnable processEvent = () -> {
+        cancelScan();
         try {
             AccessibilityNodeInfo root = getRootInActiveWindow();
             if (root == null) {
@@ -48,21 +112,6 @@ public class DistractionControlService extends AccessibilityService {
                 return;
             }
             try {
-                String packageName = root.getPackageName() != null ? root.getPackageName().toString() : "";
-
-                // Check if we have any blocked elements for this package
-                List<BlockedElement> elements = blockedElements.get(packageName);
-                if (elements != null) {
-                    // Check each blocked element to see if it still exists
-                    for (int i = elements.size() - 1; i >= 0; i--) {
-                        BlockedElement element = elements.get(i);
-                        if (!elementStillExists(root, element)) {
-                            overlayManager.removeOverlay(element.overlay, windowManager, ui);
-                            elements.remove(i);
-                        }
-                    }
-                }
-
                 processRootNode(root);
             } finally {
                 root.recycle();
@@ -73,6 +122,57 @@ public class DistractionControlService extends AccessibilityService {
     };
     private ServiceConfig config;
     private LayoutDumper layoutDumper;
+    private RuleStatsStore statsStore;
+    private LayoutTemplateStore templateStore;
+    // Template to record from the next completed scan, after its activity has (re)opened
+    private String pendingTemplate;
+    private long templateSerial;
+    private ViewIdValidator viewIdValidator;
+    private SystemPackageClassifier systemPackages;
+    private PowerManager powerManager;
+    private ThrottlePolicy throttlePolicy;
+    private PowerManager.OnThermalStatusChangedListener thermalListener;
+    // Configuration the overlays were laid out and colored for
+    private Configuration configuration;
+    private boolean nightMode;
+
+    /**
+     * Refreshes the system packages when packages change, and invalidates cached per-version state
+     * when a target app has been updated.
+     */
+    private final BroadcastReceiver packageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            systemPackages.refresh();
+            if (!Intent.ACTION_PACKAGE_REPLACED.equals(intent.getAction()) || intent.getData() == null) return;
+            String packageName = intent.getData().getSchemeSpecificPart();
+            Log.i(TAG, "Package " + packageName + " was updated");
+            statsStore.invalidateVersion(packageName);
+            templateStore.invalidate(packageName);
+            viewIdValidator.validatePackage(packageName, ruleSnapshot.rules);
+            activityClasses.keySet().removeIf(key -> key.startsWith(packageName + "/"));
+        }
+    };
+
+    /**
+     * Refreshes the system packages when the enabled keyboards change.
+     */
+    private final BroadcastReceiver inputMethodReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            systemPackages.refresh();
+        }
+    };
+
+    /**
+     * Follows the screen, power save and idle state for the throttle policy.
+     */
+    private final BroadcastReceiver deviceStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onDeviceStateChanged();
+        }
+    };
 
     /**
      * Get the current instance of the service.
@@ -83,17 +183,80 @@ public class DistractionControlService extends AccessibilityService {
         return instance;
     }
 
+    /**
+     * Wake up a rule that was put to sleep because it never matched or was too slow.
+     */
+    public void resurrectRule(FilterRule rule) {
+        if (statsStore != null) {
+            statsStore.resurrect(rule);
+        }
+    }
+
     /**
      * Update the rules in the service and clear any existing overlays.
      * This should be called whenever rules are modified in the UI.
+     * The new rules are published at once, a scan in progress keeps working on the old ones.
      */
     public void updateRules() {
         if (instance == null) return;
-        rules.clear();
-        rules.addAll(config.getRules());
-        overlayManager.clearOverlays(windowManager, ui);
-        blockedElements.clear();
-        Log.i(TAG, "Rules updated, now have " + rules.size() + " rule(s)");
+        ruleSnapshot = RuleSnapshot.of(config.getRules());
+        ui.post(this::onRulesChanged);
+    }
+
+    /**
+     * Drop all state that was derived from the previous rules.
+     */
+    private void onRulesChanged() {
+        RuleSnapshot snapshot = ruleSnapshot;
+        if (shadow != null) {
+            // Rules toggled during a test apply to the candidate as well
+            shadow.setCandidate(RuleSnapshot.of(config.getCandidateRules(shadow.customRules)));
+        }
+        viewIdValidator.validate(snapshot.rules);
+        maxOverlays = config.getMaxOverlays();
+        cancelScan();
+        scanBudget.reset();
+        overlayManager.clearOverlays(windowManager);
+        packageStates.clear();
+        overlayElements.clear();
+        actionExecutor.clear();
+        Log.i(TAG, "Rules updated, now have " + snapshot.rules.size() + " rule(s)");
+    }
+
+    /**
+     * Evaluate other custom rules alongside the rules in force on the same screens, without creating
+     * overlays, until they are promoted or the test is stopped.
+     */
+    public void startShadowTest(String[] customRules) {
+        if (instance == null) return;
+        shadow = new ShadowEvaluator(customRules, RuleSnapshot.of(config.getCandidateRules(customRules)));
+        Log.i(TAG, "Shadow test started with " + shadow.getCandidate().enabledRules.size() + " enabled rule(s)");
+    }
+
+    /**
+     * Get the running shadow test, or null if there is none.
+     */
+    ShadowEvaluator getShadowTest() {
+        return shadow;
+    }
+
+    public void stopShadowTest() {
+        if (shadow == null) return;
+        shadow.cancel();
+        ui.removeCallbacks(continueShadow);
+        shadow = null;
+    }
+
+    /**
+     * Save the rules of the shadow test and put them in force at once.
+     */
+    public void promoteShadowTest() {
+        if (shadow == null) return;
+        config.promoteCandidateRules(shadow.customRules);
+        stopShadowTest();
+        // Built from the saved settings, so that the rules in force are those of any later reload
+        ruleSnapshot = RuleSnapshot.of(config.getRules());
+        ui.post(this::onRulesChanged);
     }
 
     @Override
@@ -106,11 +269,40 @@ public class DistractionControlService extends AccessibilityService {
                 Log.e(TAG, "Failed to get WindowManager service");
                 return;
             }
+            systemPackages = new SystemPackageClassifier(this);
             config = new ServiceConfig(this);
-            rules.clear();
-            rules.addAll(config.getRules());
+            configuration = new Configuration(getResources().getConfiguration());
+            nightMode = isNightMode(configuration);
+            statsStore = new RuleStatsStore(this);
+            templateStore = new LayoutTemplateStore(this);
+            viewIdValidator = new ViewIdValidator(getPackageManager());
+            ruleSnapshot = RuleSnapshot.of(config.getRules());
+            viewIdValidator.validate(ruleSnapshot.rules);
+            maxOverlays = config.getMaxOverlays();
             configureAccessibilityService();
-            Log.i(TAG, "Accessibility service initialized with " + rules.size() + " rule(s)");
+
+            IntentFilter packageFilter = new IntentFilter(Intent.ACTION_PACKAGE_REPLACED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            packageFilter.addDataScheme("package");
+            ContextCompat.registerReceiver(this, packageReceiver, packageFilter, ContextCompat.RECEIVER_NOT_EXPORTED);
+            ContextCompat.registerReceiver(this, inputMethodReceiver, new IntentFilter(Intent.ACTION_INPUT_METHOD_CHANGED),
+                    ContextCompat.RECEIVER_NOT_EXPORTED);
+
+            powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+            throttlePolicy = new ThrottlePolicy(ThrottlePolicy.of(powerManager));
+            Log.d(TAG, throttlePolicy.describe());
+            IntentFilter deviceStateFilter = new IntentFilter(Intent.ACTION_SCREEN_OFF);
+            deviceStateFilter.addAction(Intent.ACTION_SCREEN_ON);
+            deviceStateFilter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+            deviceStateFilter.addAction(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED);
+            ContextCompat.registerReceiver(this, deviceStateReceiver, deviceStateFilter, ContextCompat.RECEIVER_NOT_EXPORTED);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                thermalListener = status -> onDeviceStateChanged();
+                powerManager.addThermalStatusListener(thermalListener);
+            }
+            Log.i(TAG, "Accessibility service initialized with " + ruleSnapshot.rules.size() + " rule(s)");
 
             layoutDumper = new LayoutDumper();
             layoutDumper.start();
@@ -139,41 +331,52 @@ public class DistractionControlService extends AccessibilityService {
 
         if (event.getEventType() == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
             String packageName = event.getPackageName() != null ? event.getPackageName().toString() : "";
-            if (packageName.equals(getPackageName())) {
-                return; // Ignore our own window state changes
+            int kind = systemPackages.classify(packageName);
+            if (kind == SystemPackageClassifier.SELF || kind == SystemPackageClassifier.KEYBOARD) {
+                return; // Ignore our own window state changes, and keyboards that open on top of apps
             }
 
             // Check for lockscreen
-            if (packageName.equals("com.android.systemui")) {
+            if (kind == SystemPackageClassifier.SYSTEM_UI) {
                 Log.d(TAG, "Clearing overlays due to lockscreen");
                 overlayManager.forceClearOverlays(windowManager);
-                blockedElements.clear();
+                packageStates.clearElements();
+                overlayElements.clear();
                 return;
             }
 
-            // Check for common launcher packages
-            if (isLauncherPackage(packageName)) {
+            // Check for launcher packages, which also show the recent apps on most devices
+            boolean launcher = kind == SystemPackageClassifier.LAUNCHER;
+            if (launcher) {
                 Log.d(TAG, "Clearing overlays due to launcher switch");
                 overlayManager.forceClearOverlays(windowManager);
-                blockedElements.clear();
+                packageStates.clearElements();
+                overlayElements.clear();
+            }
+
+            // The state of the app that was left is evicted if it does not come back in time
+            if (launcher || ruleSnapshot.index.hasRules(packageName)) {
+                packageStates.setForeground(packageName, SystemClock.uptimeMillis());
+                ui.removeCallbacks(evictBackground);
+                ui.postDelayed(evictBackground, PackageStateCache.BACKGROUND_TIMEOUT_MS);
+            }
+
+            if (trackActivity(event, packageName)) {
+                placeFromTemplate(event.getWindowId(), packageName);
             }
         }
 
-        if (!shouldProcessEvent(event)) return;
+        if (throttlePolicy == null || throttlePolicy.isSuspended() || !shouldProcessEvent(event)) return;
+        Rect sourceBounds = getSourceBounds(event);
+        boolean scrolled = event.getEventType() == AccessibilityEvent.TYPE_VIEW_SCROLLED;
+        if (scrolled) {
+            translateScrolled(event, sourceBounds);
+        }
+        markDirty(sourceBounds);
+        // Under constraint, overlays only follow scrolled content and the region is rescanned with the next change
+        if (scrolled && !throttlePolicy.shouldRescanOnScroll()) return;
         ui.removeCallbacks(processEvent);
-        ui.postDelayed(processEvent, PROCESSING_DELAY_MS);
-    }
-
-    private boolean isLauncherPackage(String packageName) {
-        PackageManager localPackageManager = getPackageManager();
-        Intent intent = new Intent("android.intent.action.MAIN");
-        intent.addCategory("android.intent.category.HOME");
-        String str = localPackageManager
-                .resolveActivity(intent, PackageManager.MATCH_DEFAULT_ONLY)
-                .activityInfo
-                .packageName;
-        Log.e("Current launcher Package Name:", str);
-        return packageName.equals(str);
+        ui.postDelayed(processEvent, throttlePolicy.getDebounceMs(PROCESSING_DELAY_MS));
     }
 
     private boolean shouldProcessEvent(AccessibilityEvent event) {
@@ -185,13 +388,173 @@ public class DistractionControlService extends AccessibilityService {
         return (eventType == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
                 || eventType == AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
                 || eventType == AccessibilityEvent.TYPE_VIEW_SCROLLED)
-                && hasMatchingRule(pkg);
+                && hasMatchingRule(pkg)
+                // Drop changes the rules of the package cannot see before they reach the debounce
+                && eventClassifier.isRelevant(event, dependenciesFor(pkg.toString()));
+    }
+
+    /**
+     * Get the screen bounds of the view an event originates from, or null if they are unknown.
+     */
+    private static Rect getSourceBounds(AccessibilityEvent event) {
+        if (event.getEventType() == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) return null;
+        AccessibilityNodeInfo source = event.getSource();
+        if (source == null) return null;
+        try {
+            Rect bounds = new Rect();
+            source.getBoundsInScreen(bounds);
+            return bounds;
+        } finally {
+            source.recycle();
+        }
+    }
+
+    /**
+     * Remember which part of the screen an event may have changed.
+     *
+     * @param sourceBounds Bounds of the event's source view, or null if the whole screen may have changed
+     */
+    private void markDirty(Rect sourceBounds) {
+        if (dirtyAll) return;
+        if (sourceBounds == null || dirtyRegions.size() >= MAX_DIRTY_REGIONS) {
+            dirtyAll = true;
+            dirtyRegions.clear();
+            return;
+        }
+        dirtyRegions.add(sourceBounds);
+    }
+
+    /**
+     * Move the overlays inside a scrolled container along with its content, so that they do not lag
+     * behind until the next scan has found the elements again.
+     */
+    private void translateScrolled(AccessibilityEvent event, Rect container) {
+        if (container == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.P) return;
+        // Deltas are -1 if the app did not report them
+        int dx = event.getScrollDeltaX() != -1 ? event.getScrollDeltaX() : 0;
+        int dy = event.getScrollDeltaY() != -1 ? event.getScrollDeltaY() : 0;
+        if (dx == 0 && dy == 0) return;
+
+        for (View overlay : overlayManager.getOverlaysIn(container)) {
+            BlockedElement element = overlayElements.get(overlay);
+            // Overlays that stick out of the container belong to other views
+            if (element == null || !container.contains(element.bounds)) continue;
+            element.bounds.offset(-dx, -dy);
+            element.params.x = element.bounds.left;
+            element.params.y = element.bounds.top;
+            overlayManager.updateOverlay(overlay, element.params, windowManager);
+        }
     }
 
     private boolean hasMatchingRule(CharSequence packageName) {
-        return rules.stream()
-                .filter(rule -> rule.enabled)
-                .anyMatch(rule -> rule.matchesPackage(packageName));
+        return ruleSnapshot.index.hasRules(packageName)
+                || (shadow != null && shadow.getCandidate().index.hasRules(packageName));
+    }
+
+    private int dependenciesFor(String packageName) {
+        int dependencies = ruleSnapshot.index.dependenciesFor(packageName);
+        return shadow != null ? dependencies | shadow.getCandidate().index.dependenciesFor(packageName) : dependencies;
+    }
+
+    /**
+     * Remember the foreground activity of the window whose state changed.
+     * Window state changes are also sent for dialogs and other views, which are ignored.
+     *
+     * @return Whether an activity was opened
+     */
+    private boolean trackActivity(AccessibilityEvent event, String packageName) {
+        if (event.getClassName() == null || !hasMatchingRule(packageName)) return false;
+        String className = event.getClassName().toString();
+
+        String key = packageName + "/" + className;
+        Boolean isActivity = activityClasses.get(key);
+        if (isActivity == null) {
+            try {
+                getPackageManager().getActivityInfo(new ComponentName(packageName, className), 0);
+                isActivity = true;
+            } catch (PackageManager.NameNotFoundException e) {
+                isActivity = false;
+            }
+            activityClasses.put(key, isActivity);
+        }
+
+        if (isActivity) {
+            windowActivities.put(event.getWindowId(), className);
+            Log.d(TAG, "Foreground activity of window " + event.getWindowId() + " is " + className);
+        }
+        return isActivity;
+    }
+
+    /**
+     * Put the overlays of the last time the foreground activity of a window opened in place right
+     * away, rather than waiting for the first scan. The scan then confirms, moves or removes them.
+     */
+    private void placeFromTemplate(int windowId, String packageName) {
+        String activity = windowActivities.get(windowId);
+        if (activity == null) return;
+        String key = templateKey(packageName, activity);
+        pendingTemplate = key;
+        List<LayoutTemplateStore.Entry> entries = templateStore.get(key);
+        if (entries.isEmpty()) return;
+
+        Map<Integer, FilterRule> rulesByHash = new HashMap<>();
+        for (FilterRule rule : ruleSnapshot.index.rulesFor(packageName, activity)) {
+            rulesByHash.put(rule.hashCode(), rule);
+        }
+        Map<String, BlockedElement> elements = packageStates.get(packageName).elements;
+        int placed = 0;
+        for (LayoutTemplateStore.Entry entry : entries) {
+            FilterRule rule = rulesByHash.get(entry.ruleHash);
+            if (rule == null || isBlocked(elements, rule, entry.bounds)) continue;
+            BlockedElement element = addOverlay(packageName, new Rect(entry.bounds), rule,
+                    ElementId.template(templateSerial++));
+            if (element == null) break;
+            // Kept until the next scan has had the chance to confirm it
+            element.generation = scanGeneration;
+            elements.put(elementKey(rule, element.id), element);
+            placed++;
+        }
+        if (placed > 0) {
+            Log.d(TAG, "Placed " + placed + " overlay(s) from the template of " + activity);
+        }
+    }
+
+    private static boolean isBlocked(Map<String, BlockedElement> elements, FilterRule rule, Rect bounds) {
+        for (BlockedElement element : elements.values()) {
+            if (element.rule.equals(rule) && element.bounds.equals(bounds)) return true;
+        }
+        return false;
+    }
+
+    private String templateKey(String packageName, String activity) {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        return LayoutTemplateStore.key(packageName, activity, getResources().getConfiguration().orientation,
+                metrics.widthPixels, metrics.heightPixels);
+    }
+
+    /**
+     * Remember the overlays of the completed scan as the template of its activity, if the activity
+     * has just opened.
+     */
+    private void recordTemplate(String activity) {
+        if (pendingTemplate == null || activity == null) return;
+        String key = templateKey(scanPackage, activity);
+        if (!key.equals(pendingTemplate)) return;
+        pendingTemplate = null;
+
+        List<LayoutTemplateStore.Entry> entries = new ArrayList<>();
+        PackageStateCache.PackageState state = packageStates.peek(scanPackage);
+        if (state != null) {
+            for (BlockedElement element : state.elements.values()) {
+                if (element.generation == scanGeneration) {
+                    entries.add(new LayoutTemplateStore.Entry(element.rule.hashCode(), new Rect(element.bounds)));
+                }
+            }
+        }
+        // In screen order, so that an unchanged layout gives an equal template
+        entries.sort((a, b) -> a.bounds.top != b.bounds.top
+                ? Integer.compare(a.bounds.top, b.bounds.top) : Integer.compare(a.bounds.left, b.bounds.left));
+        templateStore.put(key, entries);
     }
 
     private void processRootNode(AccessibilityNodeInfo root) {
@@ -201,106 +564,401 @@ public class DistractionControlService extends AccessibilityService {
             return;
         }
 
-        for (FilterRule rule : rules) {
-            if (rule.enabled && rule.matchesPackage(packageName)) {
-                applyRule(rule, root);
+        String activity = windowActivities.get(root.getWindowId());
+        // The whole scan works on the rules as they are now
+        scanSnapshot = ruleSnapshot;
+        if (shadow != null) {
+            // Set up on the same tree, but only run once the live scan is complete
+            ui.removeCallbacks(continueShadow);
+            shadow.start(root, packageName.toString(), activity, scanSnapshot, SystemClock.uptimeMillis());
+        }
+        List<FilterRule> packageRules = new ArrayList<>();
+        for (FilterRule rule : scanSnapshot.index.rulesFor(packageName.toString(), activity)) {
+            // Rules whose view ID does not exist in the installed app cannot match
+            if (!viewIdValidator.isMissing(rule)) {
+                packageRules.add(rule);
             }
         }
-    }
 
-    private void applyRule(FilterRule rule, AccessibilityNodeInfo node) {
-        if (node == null || !node.isVisibleToUser()) return;
+        scanPackage = packageName.toString();
+        scanActivity = activity;
+        scanRules = packageRules;
+        scanElapsedNs = 0;
+        scanGeneration++;
+        root.getBoundsInScreen(scanViewport);
+        scanCulled = 0;
+        scanDeferred = 0;
+        scanEvicted = 0;
+        scanRejected = 0;
+        scanActionRule = null;
+        long scanNumber = scanBudget.startScan(scanPackage);
 
-        if (isTargetView(node, rule)) {
-            processTargetView(node, rule);
+        // Decide up front which rules take part in this scan
+        RuleStatsStore.PackageStats stats = statsStore.forPackage(scanPackage);
+        scanActive.clear();
+        for (FilterRule rule : packageRules) {
+            RuleStatsStore.Stats ruleStats = stats.get(rule);
+            if (!ruleStats.dormant && ScanBudget.shouldEvaluate(ruleStats, scanNumber)) {
+                scanActive.add(rule);
+            }
         }
 
-        for (int i = 0; i < node.getChildCount(); i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            if (child == null) continue;
-            try {
-                applyRule(rule, child);
-            } finally {
-                child.recycle();
+        // Overlay changes of the whole scan are applied together
+        overlayManager.beginTransaction();
+
+        // Path rules only touch a few nodes each and are applied right away
+        long start = System.nanoTime();
+        Set<PathTrie> tries = new HashSet<>();
+        for (FilterRule rule : packageRules) {
+            if (rule.path != null && scanActive.contains(rule)) {
+                PathTrie trie = scanSnapshot.index.pathTrie(rule);
+                if (trie != null && tries.add(trie)) {
+                    applyPathRules(trie, rule.targetViewId, root, stats);
+                }
             }
         }
+        scanElapsedNs += System.nanoTime() - start;
+
+        // All selectors are matched together in a single traversal of the tree
+        scanAutomaton = packageStates.get(scanPackage).automatonFor(activity, scanSnapshot);
+        scan = scanAutomaton.newScan(root, scanActive, dirtyAll ? null : new ArrayList<>(dirtyRegions));
+        dirtyAll = false;
+        dirtyRegions.clear();
+        runScan();
     }
 
-    private boolean isTargetView(AccessibilityNodeInfo node, FilterRule rule) {
-        if (rule.targetViewId == null || rule.targetViewId.isEmpty()) {
-            CharSequence desc = node.getContentDescription();
-            return desc != null && rule.contentDescriptions.contains(desc.toString());
+    /**
+     * Continue the selector traversal of the current scan until the scan budget of this frame is used up.
+     * The traversal is paused and continued on the next frame, so that a slow scan cannot block the UI thread.
+     */
+    private void runScan() {
+        if (scan == null) return;
+        try {
+            if (!scan.run(ScanBudget.BUDGET_NS, selectorListener)) {
+                Log.d(TAG, "Scan of " + scanPackage + " out of budget after " + scan.getNodes()
+                        + " node(s), continuing on the next frame");
+                ui.postDelayed(continueScan, FRAME_DELAY_MS);
+                return;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error scanning " + scanPackage, e);
+            cancelScan();
+            return;
+        }
+        finishScan();
+    }
+
+    /**
+     * Record the cost of a completed scan and adjust the rule levels.
+     */
+    private void finishScan() {
+        RuleStatsStore.PackageStats stats = statsStore.forPackage(scanPackage);
+
+        // The shared traversal is charged to the rules in proportion to the nodes they were tested on
+        long selectorNs = scan.getElapsedNs();
+        long totalTests = scan.getTotalTests();
+        for (FilterRule rule : scanAutomaton.getRules()) {
+            if (!scanActive.contains(rule)) continue;
+            int tests = scan.getTests(rule);
+            long timeNs = totalTests > 0 ? selectorNs * tests / totalTests : 0;
+            stats.record(rule, timeNs, tests, scan.getMatches(rule));
+        }
+        scanElapsedNs += selectorNs;
+        removeVanishedElements(stats);
+        overlayManager.commitTransaction();
+        recordTemplate(scanActivity);
+        if (scanActionRule != null) {
+            actionExecutor.execute(scanActionRule, scanPackage, scanActionBounds, SystemClock.uptimeMillis());
+            scanActionRule = null;
+        }
+        if (scanCulled > 0 || scanDeferred > 0) {
+            Log.d(TAG, "Scan of " + scanPackage + " culled " + scanCulled + " covered overlay(s), deferred "
+                    + scanDeferred + " off-screen one(s)");
+        }
+        if (scanEvicted > 0 || scanRejected > 0) {
+            Log.i(TAG, "Scan of " + scanPackage + " reached the limit of " + maxOverlays + " overlay(s), evicted "
+                    + scanEvicted + " and could not block " + scanRejected + " element(s)");
+        }
+        if (scan.getReplayedNodes() > 0) {
+            Log.d(TAG, "Scan of " + scanPackage + " visited " + scan.getNodes() + " node(s), reused "
+                    + scan.getReplayedNodes() + " unchanged one(s)");
+        }
+        scan = null;
+        // The caches of the scanned package may have grown
+        packageStates.enforceLimit();
+
+        if (scanBudget.onScanFinished(stats, scanRules, scanElapsedNs)) {
+            // Make the new rule levels visible in the settings right away
+            statsStore.flush();
+        } else {
+            statsStore.flushIfDue();
+        }
+        templateStore.flushIfDue();
+        if (shadow != null && shadow.isRunning()) {
+            ui.postDelayed(continueShadow, FRAME_DELAY_MS);
+        }
+    }
+
+    /**
+     * Continue the shadow evaluation while no live scan is in progress, with the same budget per frame.
+     */
+    private void runShadow() {
+        if (shadow == null || scan != null) return;
+        try {
+            if (!shadow.run(ScanBudget.BUDGET_NS)) {
+                ui.postDelayed(continueShadow, FRAME_DELAY_MS);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error in shadow evaluation", e);
+            shadow.cancel();
         }
+    }
 
-        String viewId = node.getViewIdResourceName();
-        return viewId != null && viewId.equals(rule.targetViewId);
+    /**
+     * Abort a scan that is still in progress, e.g. because the screen has changed in the meantime.
+     */
+    private void cancelScan() {
+        ui.removeCallbacks(continueScan);
+        if (scan != null) {
+            scan.cancel();
+            // Parts of the screen the scan did not get to have still changed
+            List<Rect> regions = scan.getDirtyRegions();
+            if (regions == null) {
+                dirtyAll = true;
+                dirtyRegions.clear();
+            } else if (!dirtyAll) {
+                dirtyRegions.addAll(regions);
+            }
+            scan = null;
+            // The screen has changed, so the action may no longer apply
+            scanActionRule = null;
+        }
+        // Changes of the scan so far are kept
+        overlayManager.commitTransaction();
     }
 
-    private void processTargetView(AccessibilityNodeInfo node, FilterRule rule) {
-        if (rule.targetViewId == null || rule.contentDescriptions == null || rule.contentDescriptions.isEmpty() || rule.targetViewId.isEmpty()) {
+    /**
+     * Apply all path rules of a trie, starting from the views with the anchor ID or the root.
+     */
+    private void applyPathRules(PathTrie trie, String anchorId, AccessibilityNodeInfo root,
+                                RuleStatsStore.PackageStats stats) {
+        Map<FilterRule, Integer> matches = new HashMap<>();
+        PathTrie.MatchListener listener = (matchedRule, node) -> {
             Rect bounds = new Rect();
             node.getBoundsInScreen(bounds);
             if (!bounds.isEmpty()) {
-                addOverlay(bounds, rule);
+                matches.merge(matchedRule, 1, Integer::sum);
+                blockElement(matchedRule, bounds, ElementId.of(node, null));
             }
-            return;
-        }
+        };
 
-        for (int i = 0; i < node.getChildCount(); i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            if (child == null) continue;
-            try {
-                if (subtreeContainsContentDescription(child, rule.contentDescriptions)) {
-                    Rect bounds = new Rect();
-                    child.getBoundsInScreen(bounds);
-                    if (!bounds.isEmpty()) {
-                        addOverlay(bounds, rule);
+        long start = System.nanoTime();
+        int visited = 0;
+        if (anchorId == null || anchorId.isEmpty()) {
+            visited += trie.apply(root, scanActive, listener);
+        } else {
+            List<AccessibilityNodeInfo> anchors = root.findAccessibilityNodeInfosByViewId(anchorId);
+            if (anchors != null) {
+                for (AccessibilityNodeInfo anchor : anchors) {
+                    try {
+                        visited += trie.apply(anchor, scanActive, listener);
+                    } finally {
+                        anchor.recycle();
                     }
                 }
-            } finally {
-                child.recycle();
             }
         }
+        long elapsed = System.nanoTime() - start;
+
+        // The cost of the shared lookups is split evenly among the rules that took part
+        List<FilterRule> group = new ArrayList<>();
+        for (FilterRule member : trie.getRules()) {
+            if (scanActive.contains(member)) {
+                group.add(member);
+            }
+        }
+        for (FilterRule member : group) {
+            stats.record(member, elapsed / group.size(), visited / group.size(),
+                    matches.getOrDefault(member, 0));
+        }
     }
 
-    private boolean subtreeContainsContentDescription(AccessibilityNodeInfo node, Set<String> targets) {
-        if (node == null) return false;
+    /**
+     * Block a matched element. An element that was already blocked in a previous scan keeps its
+     * overlay, which is only moved if the element has moved.
+     * <p>
+     * Elements are culled first: only their visible part is covered, elements outside the window
+     * are left until a later scan finds them scrolled into view, and elements that lie within an
+     * alike overlay of this scan get no overlay of their own. Matches of action rules get no overlay at all.
+     */
+    private void blockElement(FilterRule rule, Rect bounds, ElementId id) {
+        if (!bounds.intersect(scanViewport)) {
+            scanDeferred++;
+            return;
+        }
+        if (rule.action != null) {
+            // Action rules cover nothing; the first one found acts once the scan is complete
+            if (scanActionRule == null) {
+                scanActionRule = rule;
+                scanActionBounds.set(bounds);
+            }
+            return;
+        }
+        if (isCovered(rule, bounds)) {
+            scanCulled++;
+            return;
+        }
 
-        CharSequence desc = node.getContentDescription();
-        if (desc != null && targets.contains(desc.toString())) return true;
+        // Keyed by the scanned package, which may differ from the rule's for package globs
+        Map<String, BlockedElement> elements = packageStates.get(scanPackage).elements;
+        String key = elementKey(rule, id);
+        BlockedElement element = elements.get(key);
+        if (element == null) {
+            // The node may have been recreated, e.g. by a list that rebinds its items,
+            // or the element may have been placed from a template
+            for (BlockedElement candidate : elements.values()) {
+                if (candidate.generation == scanGeneration || !candidate.rule.equals(rule)) continue;
+                if (candidate.id.fallbackMatches(id)) {
+                    element = candidate;
+                    break;
+                }
+                if (candidate.id.isTemplate() && (element == null || candidate.bounds.equals(bounds))) {
+                    element = candidate;
+                }
+            }
+            if (element != null) {
+                elements.remove(elementKey(rule, element.id));
+                element.id = id;
+                elements.put(key, element);
+            }
+        }
 
-        for (int i = 0; i < node.getChildCount(); i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            if (child == null) continue;
-            try {
-                if (subtreeContainsContentDescription(child, targets)) return true;
-            } finally {
-                child.recycle();
+        if (element == null) {
+            element = addOverlay(scanPackage, bounds, rule, id);
+            if (element == null) return;
+            elements.put(key, element);
+        } else if (!element.bounds.equals(bounds)) {
+            element.bounds.set(bounds);
+            element.params.x = bounds.left;
+            element.params.y = bounds.top;
+            element.params.width = bounds.width();
+            element.params.height = bounds.height();
+            overlayManager.updateOverlay(element.overlay, element.params, windowManager);
+        }
+        element.generation = scanGeneration;
+        removeCovered(element);
+    }
+
+    /**
+     * Whether an element is already hidden by an alike overlay of an element found in this scan.
+     */
+    private boolean isCovered(FilterRule rule, Rect bounds) {
+        for (View overlay : overlayManager.getOverlaysCovering(bounds)) {
+            BlockedElement element = overlayElements.get(overlay);
+            if (element != null && element.generation == scanGeneration && element.looksLike(rule)) {
+                return true;
             }
         }
         return false;
     }
 
-    private void addOverlay(Rect area, FilterRule rule) {
-        if (overlayManager.getOverlayCount() >= MAX_OVERLAY_COUNT) {
-            Log.w(TAG, "Maximum overlay count reached, clearing old overlays");
-            overlayManager.clearOverlays(windowManager, ui);
-            blockedElements.clear();
+    /**
+     * Remove the overlays that lie within an element's overlay and look alike, e.g. of a nested
+     * element that was found before its container.
+     */
+    private void removeCovered(BlockedElement element) {
+        Map<String, BlockedElement> elements = packageStates.get(scanPackage).elements;
+        for (View overlay : overlayManager.getOverlaysIn(element.bounds)) {
+            BlockedElement other = overlayElements.get(overlay);
+            if (other == null || other == element || !element.bounds.contains(other.bounds)
+                    || !other.looksLike(element.rule)) continue;
+            String key = elementKey(other.rule, other.id);
+            // Only elements of the scanned package
+            if (elements.get(key) != other) continue;
+            elements.remove(key);
+            overlayManager.removeOverlay(overlay, windowManager);
+            overlayElements.remove(overlay);
+            scanCulled++;
+        }
+    }
+
+    private static String elementKey(FilterRule rule, ElementId id) {
+        return rule.ruleString + "|" + id.primary;
+    }
+
+    /**
+     * Remove the overlays of elements that the completed scan did not find again.
+     * Elements of throttled rules that sat out this scan are kept until their next turn; those of
+     * suspended and dormant rules, which no scan confirms any more, are removed.
+     */
+    private void removeVanishedElements(RuleStatsStore.PackageStats stats) {
+        PackageStateCache.PackageState state = packageStates.peek(scanPackage);
+        if (state == null) return;
+        Iterator<BlockedElement> iterator = state.elements.values().iterator();
+        while (iterator.hasNext()) {
+            BlockedElement element = iterator.next();
+            if (element.generation == scanGeneration) continue;
+            if (scanRules.contains(element.rule) && !scanActive.contains(element.rule)) {
+                RuleStatsStore.Stats ruleStats = stats.get(element.rule);
+                if (!ruleStats.dormant && ruleStats.level == ScanBudget.LEVEL_THROTTLED) continue;
+            }
+            overlayManager.removeOverlay(element.overlay, windowManager);
+            overlayElements.remove(element.overlay);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Make room for a new overlay by removing the one that is least likely to be needed: overlays
+     * farthest outside the scanned window go first, then those confirmed least recently.
+     * Overlays of elements on screen that this scan has found are kept.
+     *
+     * @return Whether an overlay was removed
+     */
+    private boolean evictOverlay() {
+        BlockedElement victim = null;
+        int victimDistance = 0;
+        for (BlockedElement element : overlayElements.values()) {
+            int distance = distanceFromViewport(element.bounds);
+            if (distance == 0 && element.generation == scanGeneration) continue;
+            if (victim == null || distance > victimDistance
+                    || (distance == victimDistance && element.generation < victim.generation)) {
+                victim = element;
+                victimDistance = distance;
+            }
+        }
+        if (victim == null) return false;
+
+        PackageStateCache.PackageState state = packageStates.peek(victim.packageName);
+        if (state != null) {
+            state.elements.remove(elementKey(victim.rule, victim.id));
+        }
+        overlayManager.removeOverlay(victim.overlay, windowManager);
+        overlayElements.remove(victim.overlay);
+        scanEvicted++;
+        return true;
+    }
+
+    /**
+     * Get how far a rectangle lies outside the scanned window, or 0 if it is (partly) visible.
+     */
+    private int distanceFromViewport(Rect bounds) {
+        int dx = Math.max(0, Math.max(scanViewport.left - bounds.right, bounds.left - scanViewport.right));
+        int dy = Math.max(0, Math.max(scanViewport.top - bounds.bottom, bounds.top - scanViewport.bottom));
+        return dx + dy;
+    }
+
+    /**
+     * @return The blocked element, or null if there are too many overlays already
+     */
+    private BlockedElement addOverlay(String packageName, Rect area, FilterRule rule, ElementId id) {
+        if (overlayManager.getOverlayCount() >= maxOverlays && !evictOverlay()) {
+            scanRejected++;
+            return null;
         }
 
         View blocker = new View(this);
-        
-        // Check if dark mode is enabled
-        boolean isDarkMode = (getResources().getConfiguration().uiMode & Configuration.UI_MODE_NIGHT_MASK) == Configuration.UI_MODE_NIGHT_YES;
-        int color = rule.color;
-        
-        // Only change the default white color to black in dark mode
-        // If a color was explicitly specified in the rule (including white), keep it as is
-        if (color == Color.WHITE && isDarkMode && !rule.ruleString.contains("color=")) {
-            color = Color.BLACK;
-        }
-        
-        blocker.setBackgroundColor(color);
+        blocker.setBackgroundColor(rule.colorFor(nightMode));
         blocker.setAlpha(1f);
 
         int flags = WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE | WindowManager.LayoutParams.FLAG_LAYOUT_IN_SCREEN;
@@ -318,78 +976,140 @@ public class DistractionControlService extends AccessibilityService {
                 PixelFormat.TRANSLUCENT);
         lp.gravity = Gravity.TOP | Gravity.START;
 
-        overlayManager.addOverlay(blocker, lp, windowManager, ui);
-
-        List<BlockedElement> elements = blockedElements.computeIfAbsent(rule.packageName, k -> new ArrayList<>());
-        elements.add(new BlockedElement(rule.targetViewId, rule.contentDescriptions, blocker, new Rect(area)));
+        overlayManager.addOverlay(blocker, lp, windowManager);
+        BlockedElement element = new BlockedElement(packageName, rule, id, blocker, lp, new Rect(area));
+        overlayElements.put(blocker, element);
+        return element;
     }
 
-    private boolean elementStillExists(AccessibilityNodeInfo root, BlockedElement element) {
-        if (root == null) return false;
+    /**
+     * Stop scanning while the screen is off, and rescan the whole screen once it is back on.
+     */
+    private void onDeviceStateChanged() {
+        if (throttlePolicy == null) return;
+        boolean screenTurnedOn = throttlePolicy.refresh();
+        Log.d(TAG, throttlePolicy.describe());
+        if (throttlePolicy.isSuspended()) {
+            cancelScan();
+            ui.removeCallbacks(processEvent);
+        } else if (screenTurnedOn) {
+            dirtyAll = true;
+            dirtyRegions.clear();
+            ui.removeCallbacks(processEvent);
+            ui.post(processEvent);
+        }
+    }
 
-        if (element.viewId != null && !element.viewId.isEmpty()) {
-            String viewId = root.getViewIdResourceName();
-            if (viewId != null && viewId.equals(element.viewId)) {
-                Rect bounds = new Rect();
-                root.getBoundsInScreen(bounds);
-                return bounds.equals(element.bounds);
-            }
+    /**
+     * Remove the overlays of a package whose state is evicted.
+     */
+    private void onPackageEvicted(PackageStateCache.PackageState state) {
+        for (BlockedElement element : state.elements.values()) {
+            overlayManager.removeOverlay(element.overlay, windowManager);
+            overlayElements.remove(element.overlay);
         }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        packageStates.onTrimMemory(level);
+        Log.i(TAG, "Memory trim level " + level + ", engine state: " + packageStates.describe()
+                + "\n" + eventClassifier.describe());
+    }
+
+    private static boolean isNightMode(Configuration configuration) {
+        return (configuration.uiMode & Configuration.UI_MODE_NIGHT_MASK) == Configuration.UI_MODE_NIGHT_YES;
+    }
+
+    /**
+     * Recolor the overlays when dark mode is toggled, and find the elements again right away when the
+     * screen geometry changes, e.g. on rotation.
+     */
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        if (configuration == null) return;
+        int changes = configuration.diff(newConfig);
+        configuration = new Configuration(newConfig);
 
-        if (element.descriptions != null && !element.descriptions.isEmpty()) {
-            CharSequence desc = root.getContentDescription();
-            if (desc != null && element.descriptions.contains(desc.toString())) {
-                Rect bounds = new Rect();
-                root.getBoundsInScreen(bounds);
-                return bounds.equals(element.bounds);
+        if ((changes & Configuration.CONFIG_UI_MODE) != 0 && isNightMode(newConfig) != nightMode) {
+            nightMode = !nightMode;
+            for (BlockedElement element : overlayElements.values()) {
+                element.overlay.setBackgroundColor(element.rule.colorFor(nightMode));
             }
+            Log.d(TAG, "Recolored " + overlayElements.size() + " overlay(s) for dark mode " + nightMode);
         }
 
-        for (int i = 0; i < root.getChildCount(); i++) {
-            AccessibilityNodeInfo child = root.getChild(i);
-            if (child == null) continue;
-            try {
-                if (elementStillExists(child, element)) {
-                    return true;
-                }
-            } finally {
-                child.recycle();
-            }
+        int geometry = Configuration.CONFIG_ORIENTATION | Configuration.CONFIG_SCREEN_SIZE
+                | Configuration.CONFIG_SMALLEST_SCREEN_SIZE | Configuration.CONFIG_SCREEN_LAYOUT
+                | Configuration.CONFIG_DENSITY;
+        if ((changes & geometry) != 0 && instance != null) {
+            // All overlays are out of place; rescan the whole screen ahead of any queued work
+            Log.d(TAG, "Screen geometry changed, rescanning");
+            cancelScan();
+            dirtyAll = true;
+            dirtyRegions.clear();
+            ui.removeCallbacks(processEvent);
+            ui.postAtFrontOfQueue(processEvent);
         }
-        return false;
     }
 
     @Override
     public void onInterrupt() {
+        cancelScan();
         if (layoutDumper != null) {
             layoutDumper.stop();
         }
+        if (statsStore != null) {
+            statsStore.flush();
+        }
+        if (templateStore != null) {
+            templateStore.flush();
+        }
         overlayManager.forceClearOverlays(windowManager);
-        blockedElements.clear();
+        packageStates.clear();
+        overlayElements.clear();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         instance = null;
+        cancelScan();
+        stopShadowTest();
+        try {
+            unregisterReceiver(packageReceiver);
+        } catch (IllegalArgumentException e) {
+            // Receiver was never registered
+        }
+        try {
+            unregisterReceiver(inputMethodReceiver);
+        } catch (IllegalArgumentException e) {
+            // Receiver was never registered
+        }
+        try {
+            unregisterReceiver(deviceStateReceiver);
+        } catch (IllegalArgumentException e) {
+            // Receiver was never registered
+        }
+        if (thermalListener != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            powerManager.removeThermalStatusListener(thermalListener);
+        }
+        if (viewIdValidator != null) {
+            viewIdValidator.shutdown();
+        }
         if (layoutDumper != null) {
             layoutDumper.stop();
         }
-        overlayManager.forceClearOverlays(windowManager);
-        blockedElements.clear();
-    }
-
-    private static class BlockedElement {
-        final String viewId;
-        final Set<String> descriptions;
-        final View overlay;
-        final Rect bounds;
-
-        BlockedElement(String viewId, Set<String> descriptions, View overlay, Rect bounds) {
-            this.viewId = viewId;
-            this.descriptions = descriptions;
-            this.overlay = overlay;
-            this.bounds = bounds;
+        if (statsStore != null) {
+            statsStore.flush();
+        }
+        if (templateStore != null) {
+            templateStore.flush();
         }
+        overlayManager.forceClearOverlays(windowManager);
+        packageStates.clear();
+        overlayElements.clear();
     }
 }
@@ -0,0 +1,77 @@
+package net.kollnig.greasemilkyway;
+
+import android.os.Build;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.Objects;
+
+/**
+ * Identity of a blocked view that survives scrolling and relayouts, so that its overlay can be
+ * moved instead of being recreated.
+ */
+class ElementId {
+    // Unique ID of the view on API 33+ if the app provides one, otherwise its source node ID
+    final String primary;
+    // View ID and child index path, to find the view again if its node was recreated; may be null
+    final String fallback;
+
+    private ElementId(String primary, String fallback) {
+        this.primary = primary;
+        this.fallback = fallback;
+    }
+
+    /**
+     * @param indexPath Child indices from the root to the node, such as 0/3/1, or null if unknown
+     */
+    static ElementId of(AccessibilityNodeInfo node, String indexPath) {
+        String primary = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            String uniqueId = node.getUniqueId();
+            if (uniqueId != null) primary = "u:" + uniqueId;
+        }
+        if (primary == null) {
+            // Nodes are equal, and hash alike, if they have the same source node and window IDs
+            primary = "s:" + node.getWindowId() + ":" + node.hashCode();
+        }
+
+        String viewId = node.getViewIdResourceName();
+        String fallback = null;
+        if (viewId != null || indexPath != null) {
+            fallback = viewId + "@" + indexPath;
+        }
+        return new ElementId(primary, fallback);
+    }
+
+    /**
+     * Identity of an element placed from a layout template, before a scan has found the actual view.
+     *
+     * @param serial Number that is unique among all template elements
+     */
+    static ElementId template(long serial) {
+        return new ElementId("t:" + serial, null);
+    }
+
+    boolean isTemplate() {
+        return primary.startsWith("t:");
+    }
+
+    /**
+     * Whether the fallbacks of both identities are known and equal.
+     */
+    boolean fallbackMatches(ElementId other) {
+        return fallback != null && fallback.equals(other.fallback);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ElementId that = (ElementId) o;
+        return primary.equals(that.primary) && Objects.equals(fallback, that.fallback);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(primary, fallback);
+    }
+}
@@ -0,0 +1,63 @@
+package net.kollnig.greasemilkyway;
+
+import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+
+/**
+ * Decides whether an accessibility event can change the outcome of the rules of its package.
+ * Content changes only of texts or descriptions cannot, if no rule of the package looks at them,
+ * and neither can changes of state descriptions, pane titles or drag and drop state.
+ */
+class EventClassifier {
+    private static final String TAG = "EventClassifier";
+    private static final int REPORT_INTERVAL = 1000; // Events between two log reports
+
+    // Changes that can add, remove or replace views
+    private static final int STRUCTURAL_CHANGES = AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE
+            | AccessibilityEvent.CONTENT_CHANGE_TYPE_PANE_APPEARED
+            | AccessibilityEvent.CONTENT_CHANGE_TYPE_PANE_DISAPPEARED;
+
+    private long processed;
+    private long dropped;
+
+    /**
+     * @param dependencies The properties the rules of the event's package depend on,
+     *                     see {@link RuleIndex#dependenciesFor(String)}
+     */
+    boolean isRelevant(AccessibilityEvent event, int dependencies) {
+        boolean relevant = classify(event, dependencies);
+        if (relevant) {
+            processed++;
+        } else {
+            dropped++;
+        }
+        if ((processed + dropped) % REPORT_INTERVAL == 0) {
+            Log.i(TAG, describe());
+        }
+        return relevant;
+    }
+
+    private static boolean classify(AccessibilityEvent event, int dependencies) {
+        if (event.getEventType() != AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED) return true;
+
+        int changes = event.getContentChangeTypes();
+        // Apps do not have to say what changed
+        if (changes == AccessibilityEvent.CONTENT_CHANGE_TYPE_UNDEFINED) return true;
+
+        int relevant = STRUCTURAL_CHANGES;
+        if ((dependencies & RuleIndex.DEPENDS_ON_TEXT) != 0) {
+            relevant |= AccessibilityEvent.CONTENT_CHANGE_TYPE_TEXT;
+        }
+        if ((dependencies & RuleIndex.DEPENDS_ON_DESCRIPTION) != 0) {
+            relevant |= AccessibilityEvent.CONTENT_CHANGE_TYPE_CONTENT_DESCRIPTION;
+        }
+        return (changes & relevant) != 0;
+    }
+
+    /**
+     * Describe how many events were processed and dropped, for diagnostics.
+     */
+    String describe() {
+        return "Processed " + processed + " event(s), dropped " + dropped;
+    }
+}
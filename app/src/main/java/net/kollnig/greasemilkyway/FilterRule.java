@@ -1,33 +1,80 @@
 package net.kollnig.greasemilkyway;
 
+import java.util.List;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 /**
  * Represents a single content blocking rule.
  */
 class FilterRule {
+    // Package name, or a glob such as com.google.android.* that matches several packages
     final String packageName;
+    // Compiled glob, null if the package name is matched exactly
+    final Pattern packagePattern;
     final String targetViewId;
     final Set<String> contentDescriptions;
     final int color;
+    // Color in dark mode, black unless the rule specifies a color
+    final int nightColor;
     final String description;
     final String ruleString;
     final boolean blockTouches;
+    final List<Pattern> activities;
+    // Child indices from the anchor view (or the root if there is no view ID) to the target, null if not a path rule
+    final int[] path;
+    // Compiled selectors that pick the views to block, empty for path rules
+    final List<Selector> selectors;
+    // Number of views the rule matches at most per screen, 0 if unbounded
+    final int maxMatches;
+    // Action taken when the rule matches, null if the matched views are covered with overlays
+    final RuleAction action;
     boolean enabled;
 
-    FilterRule(String pkg, String viewId, Set<String> descs, int color, String description, String ruleString, boolean blockTouches) {
+    FilterRule(String pkg, String viewId, Set<String> descs, int color, int nightColor, String description, String ruleString,
+               boolean blockTouches, List<Pattern> activities, int[] path, List<Selector> selectors, int maxMatches,
+               RuleAction action) {
         this.packageName = pkg;
+        this.packagePattern = PackageTrie.isPattern(pkg) ? PackageTrie.toPattern(pkg) : null;
         this.targetViewId = viewId;
         this.contentDescriptions = descs;
         this.color = color;
+        this.nightColor = nightColor;
         this.description = description;
         this.ruleString = ruleString;
         this.blockTouches = blockTouches;
+        this.activities = activities;
+        this.path = path;
+        this.selectors = selectors;
+        this.maxMatches = maxMatches;
+        this.action = action;
         this.enabled = true;
     }
 
+    int colorFor(boolean nightMode) {
+        return nightMode ? nightColor : color;
+    }
+
+    boolean isPackagePattern() {
+        return packagePattern != null;
+    }
+
     boolean matchesPackage(CharSequence pkgName) {
-        return pkgName != null && packageName.contentEquals(pkgName);
+        if (pkgName == null) return false;
+        if (packagePattern != null) return packagePattern.matcher(pkgName).matches();
+        return packageName.contentEquals(pkgName);
+    }
+
+    /**
+     * Whether the rule applies to the given activity. Rules without activity patterns apply to all
+     * activities, and all rules apply if the current activity is unknown.
+     */
+    boolean matchesActivity(String activity) {
+        if (activities.isEmpty() || activity == null) return true;
+        for (Pattern pattern : activities) {
+            if (pattern.matcher(activity).matches()) return true;
+        }
+        return false;
     }
 
     @Override
@@ -5,9 +5,12 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Parser for the ad-block style filter syntax.
@@ -17,10 +20,19 @@ class FilterRuleParser {
 
     /**
      * Parses raw filter rules into structured FilterRule objects.
-     * Rules follow the format: <package-name>##viewId=<view-id>##desc=<pipe-separated-list>##color=<hex-color>##blockTouches=<true|false>##enabled=<true|false>
-     * If color is not specified, defaults to white (#FFFFFF)
+     * Rules follow the format: <package-name>##viewId=<view-id>##desc=<pipe-separated-list>##text=<pipe-separated-list>##color=<hex-color>##blockTouches=<true|false>##enabled=<true|false>##activity=<pipe-separated-globs>##path=<child-indices>##selector=<css-like-selector>##max=<count>##action=<back|scrollPast|click:view-id>
+     * Descriptions and texts match exactly, by prefix (Shorts*), suffix (*Shorts), substring (*Shorts*)
+     * or regular expression (/Sho?rts/)
+     * If color is not specified, defaults to white (#FFFFFF), or black (#000000) in dark mode
      * If blockTouches is not specified, defaults to true
      * If enabled is not specified, defaults to true
+     * If activity is not specified, the rule applies to all activities of the app
+     * If path is specified, e.g. 0/2/{@literal *}/1, the node reached by following these child indices from the
+     * view with the given view ID (or the root if there is none) is blocked; * matches any child
+     * If selector is specified, it replaces viewId and desc, see {@link SelectorParser}
+     * If max is specified, the rule stops looking for views once it has blocked that many on a screen
+     * If action is specified, the rule goes back, scrolls past the matched view or clicks another view
+     * instead of covering the matched views with overlays; max then defaults to 1
      */
     public List<FilterRule> parseRules(String[] raw) {
         List<FilterRule> rules = new ArrayList<>();
@@ -58,8 +70,17 @@ class FilterRuleParser {
 
             String targetViewId = null;
             Set<String> descriptions = new HashSet<>();
+            List<TextPattern> descriptionPatterns = new ArrayList<>();
+            List<TextPattern> textPatterns = new ArrayList<>();
             int color = Color.WHITE;  // Default to white
+            int nightColor = Color.BLACK;  // Default to black in dark mode
             boolean blockTouches = true;  // Default to blocking touches
+            List<Pattern> activities = new ArrayList<>();
+            int[] path = null;
+            List<Selector> selectors = null;
+            int maxMatches = 0;
+            RuleAction action = null;
+            boolean valid = true;
 
             // Parse the rest of the key-value pairs
             for (int i = 1; i < parts.length; i++) {
@@ -84,11 +105,32 @@ class FilterRuleParser {
                         for (String desc : value.split("\\|")) {
                             desc = desc.trim();
                             if (!desc.isEmpty()) {
+                                TextPattern pattern = parsePattern(desc);
+                                if (pattern == null) {
+                                    valid = false;
+                                    continue;
+                                }
                                 descriptions.add(desc);
+                                descriptionPatterns.add(pattern);
                                 Log.d(TAG, "Added description: " + desc);
                             }
                         }
                         break;
+                    case "text":
+                        // Split texts by pipe
+                        for (String text : value.split("\\|")) {
+                            text = text.trim();
+                            if (!text.isEmpty()) {
+                                TextPattern pattern = parsePattern(text);
+                                if (pattern == null) {
+                                    valid = false;
+                                    continue;
+                                }
+                                textPatterns.add(pattern);
+                                Log.d(TAG, "Added text: " + text);
+                            }
+                        }
+                        break;
                     case "color":
                         try {
                             color = Color.parseColor(value.startsWith("#") ? value : "#" + value);
@@ -96,11 +138,58 @@ class FilterRuleParser {
                         } catch (IllegalArgumentException e) {
                             Log.e(TAG, "Invalid color format: " + value);
                         }
+                        // A specified color, including white, is kept in dark mode
+                        nightColor = color;
                         break;
                     case "blockTouches":
                         blockTouches = Boolean.parseBoolean(value);
                         Log.d(TAG, "Parsed blockTouches: " + blockTouches);
                         break;
+                    case "activity":
+                        // Split activity class name globs by pipe
+                        for (String activity : value.split("\\|")) {
+                            activity = activity.trim();
+                            if (!activity.isEmpty()) {
+                                activities.add(globToPattern(activity));
+                                Log.d(TAG, "Added activity: " + activity);
+                            }
+                        }
+                        break;
+                    case "path":
+                        try {
+                            path = PathTrie.parse(value);
+                            Log.d(TAG, "Parsed path: " + value);
+                        } catch (NumberFormatException e) {
+                            Log.e(TAG, "Invalid path format: " + value);
+                            valid = false;
+                        }
+                        break;
+                    case "selector":
+                        try {
+                            selectors = SelectorParser.parse(value);
+                            Log.d(TAG, "Parsed selectors: " + selectors);
+                        } catch (IllegalArgumentException e) {
+                            Log.e(TAG, "Invalid selector: " + e.getMessage());
+                            valid = false;
+                        }
+                        break;
+                    case "max":
+                        try {
+                            maxMatches = Math.max(0, Integer.parseInt(value));
+                            Log.d(TAG, "Parsed max: " + maxMatches);
+                        } catch (NumberFormatException e) {
+                            Log.e(TAG, "Invalid max format: " + value);
+                        }
+                        break;
+                    case "action":
+                        try {
+                            action = RuleAction.parse(value);
+                            Log.d(TAG, "Parsed action: " + action);
+                        } catch (IllegalArgumentException e) {
+                            Log.e(TAG, "Invalid action: " + value);
+                            valid = false;
+                        }
+                        break;
                     case "comment":
                         currentComment = value;
                         Log.d(TAG, "Found comment: " + currentComment);
@@ -108,16 +197,69 @@ class FilterRuleParser {
                 }
             }
 
+            // A rule with a broken part would block or act on the wrong views, e.g. a path its anchor
+            if (!valid) {
+                Log.w(TAG, "Skipping invalid rule: " + line);
+                continue;
+            }
+
+            // Path rules are navigated by index, all others are compiled into selectors
+            if (path != null) {
+                selectors = Collections.emptyList();
+            } else if (selectors == null) {
+                selectors = SelectorParser.fromLegacy(targetViewId, descriptionPatterns, textPatterns);
+            }
+
+            // One match is enough to act, so the scan can stop looking early
+            if (action != null && maxMatches == 0) {
+                maxMatches = 1;
+            }
+
             // Create the rule
-            FilterRule rule = new FilterRule(packageName, targetViewId, descriptions, color, currentComment, line, blockTouches);
+            FilterRule rule = new FilterRule(packageName, targetViewId, descriptions, color, nightColor, currentComment, line,
+                    blockTouches, activities, path, selectors, maxMatches, action);
             Log.d(TAG, "Created rule: package=" + packageName +
                     ", viewId=" + targetViewId +
                     ", descriptions=" + descriptions +
                     ", color=" + color +
-                    ", blockTouches=" + blockTouches);
+                    ", blockTouches=" + blockTouches +
+                    ", activities=" + activities +
+                    ", selectors=" + selectors +
+                    ", action=" + action);
             rules.add(rule);
         }
 
         return rules;
     }
+
+    private static TextPattern parsePattern(String pattern) {
+        try {
+            return TextPattern.parse(pattern);
+        } catch (PatternSyntaxException e) {
+            Log.e(TAG, "Invalid regular expression: " + pattern);
+            return null;
+        }
+    }
+
+    /**
+     * Compiles a glob, where * matches any sequence of characters and ? a single character.
+     */
+    static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > literalStart) {
+                    regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                literalStart = i + 1;
+            }
+        }
+        if (literalStart < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return Pattern.compile(regex.toString());
+    }
 }
@@ -0,0 +1,174 @@
+package net.kollnig.greasemilkyway;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers where the overlays of an activity ended up, per package, activity, orientation and
+ * screen size, so that they can be put in place as soon as the activity opens, before the first
+ * scan has found the elements.
+ */
+class LayoutTemplateStore {
+    private static final String TAG = "LayoutTemplateStore";
+    private static final String PREFS_NAME = "LayoutTemplates";
+    private static final String KEY_TEMPLATES = "templates";
+    private static final int MAX_TEMPLATES = 64;
+    private static final int MAX_ENTRIES = 32; // Overlays per template
+    private static final long FLUSH_INTERVAL_MS = 10_000;
+
+    private final SharedPreferences prefs;
+    // Least recently used templates first
+    private final Map<String, List<Entry>> templates = new LinkedHashMap<String, List<Entry>>(MAX_TEMPLATES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<Entry>> eldest) {
+            return size() > MAX_TEMPLATES;
+        }
+    };
+    private boolean dirty;
+    private long lastFlush = SystemClock.uptimeMillis();
+
+    LayoutTemplateStore(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        load();
+    }
+
+    static String key(String packageName, String activity, int orientation, int width, int height) {
+        return packageName + "/" + activity + "|" + orientation + "|" + width + "x" + height;
+    }
+
+    /**
+     * Get the overlays of a template, or an empty list if there is none.
+     */
+    List<Entry> get(String key) {
+        List<Entry> entries = templates.get(key);
+        return entries != null ? entries : Collections.emptyList();
+    }
+
+    /**
+     * Replace a template with the overlays a completed scan has placed.
+     */
+    void put(String key, List<Entry> entries) {
+        if (entries.size() > MAX_ENTRIES) {
+            entries = new ArrayList<>(entries.subList(0, MAX_ENTRIES));
+        }
+        if (entries.equals(templates.get(key))) return;
+        if (entries.isEmpty()) {
+            templates.remove(key);
+        } else {
+            templates.put(key, entries);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Drop all templates of a package, e.g. after it has been updated.
+     */
+    void invalidate(String packageName) {
+        if (templates.keySet().removeIf(key -> key.startsWith(packageName + "/"))) {
+            dirty = true;
+        }
+    }
+
+    void flushIfDue() {
+        if (SystemClock.uptimeMillis() - lastFlush >= FLUSH_INTERVAL_MS) {
+            flush();
+        }
+    }
+
+    void flush() {
+        lastFlush = SystemClock.uptimeMillis();
+        if (!dirty) return;
+        dirty = false;
+        JSONArray array = new JSONArray();
+        try {
+            for (Map.Entry<String, List<Entry>> template : templates.entrySet()) {
+                JSONObject object = new JSONObject();
+                object.put("key", template.getKey());
+                StringBuilder entries = new StringBuilder();
+                for (Entry entry : template.getValue()) {
+                    if (entries.length() > 0) entries.append(';');
+                    entries.append(entry);
+                }
+                object.put("entries", entries.toString());
+                array.put(object);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error serialising templates", e);
+            return;
+        }
+        prefs.edit().putString(KEY_TEMPLATES, array.toString()).apply();
+    }
+
+    private void load() {
+        String json = prefs.getString(KEY_TEMPLATES, null);
+        if (json == null) return;
+        try {
+            JSONArray array = new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject object = array.getJSONObject(i);
+                List<Entry> entries = new ArrayList<>();
+                for (String value : object.getString("entries").split(";")) {
+                    Entry entry = Entry.parse(value);
+                    if (entry != null) entries.add(entry);
+                }
+                if (!entries.isEmpty()) {
+                    templates.put(object.getString("key"), entries);
+                }
+            }
+        } catch (JSONException | NumberFormatException e) {
+            Log.w(TAG, "Discarding corrupt templates", e);
+            templates.clear();
+        }
+    }
+
+    /**
+     * An overlay of a rule at a position on the screen.
+     */
+    static class Entry {
+        final int ruleHash; // See {@link FilterRule#hashCode()}
+        final Rect bounds;
+
+        Entry(int ruleHash, Rect bounds) {
+            this.ruleHash = ruleHash;
+            this.bounds = bounds;
+        }
+
+        static Entry parse(String value) {
+            String[] parts = value.split(",");
+            if (parts.length != 5) return null;
+            return new Entry(Integer.parseInt(parts[0]), new Rect(Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), Integer.parseInt(parts[4])));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Entry entry = (Entry) o;
+            return ruleHash == entry.ruleHash && bounds.equals(entry.bounds);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * ruleHash + bounds.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return ruleHash + "," + bounds.left + "," + bounds.top + "," + bounds.right + "," + bounds.bottom;
+        }
+    }
+}
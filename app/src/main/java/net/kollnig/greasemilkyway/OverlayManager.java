@@ -1,64 +1,113 @@
 package net.kollnig.greasemilkyway;
 
-import android.os.Handler;
+import android.graphics.Rect;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.view.WindowManager;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Manages overlay views for blocking content.
+ * <p>
+ * Changes to the overlays are not applied right away but collected, and applied together in the
+ * next frame. While a transaction is open, e.g. during a scan, they are held back until it is
+ * committed. Operations on the same overlay are coalesced, so that an overlay that is added and
+ * removed again before the frame never reaches the window manager. Must be used on the main thread.
  */
 public class OverlayManager {
     private static final String TAG = "OverlayManager";
+    private static final int ADD = 0;
+    private static final int UPDATE = 1;
+    private static final int REMOVE = 2;
+
     private final List<View> overlays = new CopyOnWriteArrayList<>();
+    // Bounds of all overlays, updated as soon as an operation is requested rather than when it is applied
+    private final SpatialIndex<View> index = new SpatialIndex<>();
+    // Pending operation per overlay, in the order they were first requested
+    private final Map<View, Operation> pending = new LinkedHashMap<>();
+    private final Choreographer.FrameCallback applyPending = frameTimeNanos -> applyPending();
+    private boolean inTransaction;
+    private boolean frameScheduled;
+    private long commitRequestedNs;
+    // Statistics of the applied frames
+    private long frames;
+    private long operations;
+    private int maxOperations;
+    private long totalLatencyNs;
 
     public int getOverlayCount() {
-        return overlays.size();
+        return index.size();
     }
 
-    public void addOverlay(View overlay, WindowManager.LayoutParams params, WindowManager windowManager, Handler ui) {
-        ui.post(() -> {
-            try {
-                windowManager.addView(overlay, params);
-                overlays.add(overlay);
-            } catch (Exception e) {
-                Log.e(TAG, "Error adding overlay", e);
-            }
-        });
+    /**
+     * Get the overlays that intersect a region of the screen.
+     */
+    List<View> getOverlaysIn(Rect region) {
+        return index.query(region);
     }
 
-    public void removeOverlay(View overlay, WindowManager windowManager, Handler ui) {
-        ui.post(() -> {
-            try {
-                if (overlay.getParent() != null) {
-                    windowManager.removeView(overlay);
-                }
-                overlays.remove(overlay);
-            } catch (Exception e) {
-                Log.e(TAG, "Error removing overlay", e);
-            }
-        });
+    /**
+     * Get the overlays that fully cover a region of the screen.
+     */
+    List<View> getOverlaysCovering(Rect region) {
+        return index.queryContaining(region);
     }
 
-    public void clearOverlays(WindowManager windowManager, Handler ui) {
-        if (overlays.isEmpty()) return;
-        for (View v : new ArrayList<>(overlays)) {
-            ui.post(() -> {
-                try {
-                    windowManager.removeView(v);
-                } catch (Exception e) {
-                    Log.e(TAG, "Error removing overlay", e);
-                }
-            });
-            overlays.remove(v);
+    Rect getBounds(View overlay) {
+        return index.get(overlay);
+    }
+
+    private static Rect bounds(WindowManager.LayoutParams params) {
+        return new Rect(params.x, params.y, params.x + params.width, params.y + params.height);
+    }
+
+    /**
+     * Hold back all changes until {@link #commitTransaction()}.
+     */
+    void beginTransaction() {
+        inTransaction = true;
+    }
+
+    /**
+     * Apply the changes since {@link #beginTransaction()} in the next frame.
+     */
+    void commitTransaction() {
+        inTransaction = false;
+        schedule();
+    }
+
+    public void addOverlay(View overlay, WindowManager.LayoutParams params, WindowManager windowManager) {
+        index.put(overlay, bounds(params));
+        enqueue(overlay, ADD, params, windowManager);
+    }
+
+    public void updateOverlay(View overlay, WindowManager.LayoutParams params, WindowManager windowManager) {
+        index.put(overlay, bounds(params));
+        enqueue(overlay, UPDATE, params, windowManager);
+    }
+
+    public void removeOverlay(View overlay, WindowManager windowManager) {
+        index.remove(overlay);
+        enqueue(overlay, REMOVE, null, windowManager);
+    }
+
+    public void clearOverlays(WindowManager windowManager) {
+        // Also covers overlays whose addition is still pending
+        for (View v : new ArrayList<>(index.items())) {
+            removeOverlay(v, windowManager);
         }
     }
 
     public void forceClearOverlays(WindowManager windowManager) {
+        index.clear();
+        // Pending additions never reached the window manager, and all other overlays are removed below
+        pending.clear();
         if (overlays.isEmpty()) return;
 
         for (View v : new ArrayList<>(overlays)) {
@@ -72,4 +121,95 @@ public class OverlayManager {
             overlays.remove(v);
         }
     }
-} 
\ No newline at end of file
+
+    private void enqueue(View overlay, int type, WindowManager.LayoutParams params, WindowManager windowManager) {
+        Operation previous = pending.get(overlay);
+        if (previous == null) {
+            pending.put(overlay, new Operation(type, params, windowManager));
+        } else if (previous.type == ADD && type == REMOVE) {
+            // The overlay was never shown
+            pending.remove(overlay);
+        } else if (previous.type == ADD && type == UPDATE) {
+            previous.params = params;
+        } else if (previous.type != REMOVE || type == ADD) {
+            previous.type = type;
+            previous.params = params;
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (inTransaction || frameScheduled || pending.isEmpty()) return;
+        frameScheduled = true;
+        commitRequestedNs = System.nanoTime();
+        Choreographer.getInstance().postFrameCallback(applyPending);
+    }
+
+    private void applyPending() {
+        frameScheduled = false;
+        if (pending.isEmpty()) return;
+        if (inTransaction) {
+            // A new transaction was opened before the frame; its commit schedules the next one
+            return;
+        }
+
+        int count = pending.size();
+        List<Map.Entry<View, Operation>> batch = new ArrayList<>(pending.entrySet());
+        pending.clear();
+        for (Map.Entry<View, Operation> entry : batch) {
+            apply(entry.getKey(), entry.getValue());
+        }
+
+        long latencyNs = System.nanoTime() - commitRequestedNs;
+        frames++;
+        operations += count;
+        maxOperations = Math.max(maxOperations, count);
+        totalLatencyNs += latencyNs;
+        Log.d(TAG, "Applied " + count + " overlay operation(s) " + latencyNs / 1000 + " us after commit"
+                + " (average " + operations / frames + " per frame, at most " + maxOperations
+                + ", average latency " + totalLatencyNs / frames / 1000 + " us)");
+    }
+
+    private void apply(View overlay, Operation operation) {
+        try {
+            switch (operation.type) {
+                case ADD:
+                    if (overlay.getParent() == null) {
+                        operation.windowManager.addView(overlay, operation.params);
+                        overlays.add(overlay);
+                    } else {
+                        operation.windowManager.updateViewLayout(overlay, operation.params);
+                    }
+                    break;
+                case UPDATE:
+                    if (overlay.getParent() != null) {
+                        operation.windowManager.updateViewLayout(overlay, operation.params);
+                    }
+                    break;
+                case REMOVE:
+                    if (overlay.getParent() != null) {
+                        operation.windowManager.removeView(overlay);
+                    }
+                    overlays.remove(overlay);
+                    break;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error applying overlay operation " + operation.type, e);
+            if (operation.type == ADD) {
+                index.remove(overlay);
+            }
+        }
+    }
+
+    private static class Operation {
+        int type;
+        WindowManager.LayoutParams params;
+        final WindowManager windowManager;
+
+        Operation(int type, WindowManager.LayoutParams params, WindowManager windowManager) {
+            this.type = type;
+            this.params = params;
+            this.windowManager = windowManager;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package net.kollnig.greasemilkyway;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Engine state per package: the blocked elements and the selector automata with their memo tables.
+ * States of packages that have left the foreground are evicted after a timeout, when memory runs
+ * low, or when all states together grow too large, least recently used first. Evicted states are
+ * rebuilt on demand.
+ */
+class PackageStateCache {
+    private static final String TAG = "PackageStateCache";
+    static final long BACKGROUND_TIMEOUT_MS = 60_000;
+    private static final long MAX_FOOTPRINT_BYTES = 4 * 1024 * 1024;
+    private static final long ELEMENT_BYTES = 1024; // Overlay view, layout params and bookkeeping
+
+    interface EvictionListener {
+        /**
+         * Called before the state of a package is dropped, to remove the overlays of its elements.
+         */
+        void onEvicted(PackageState state);
+    }
+
+    // Least recently used states first
+    private final LinkedHashMap<String, PackageState> states = new LinkedHashMap<>(16, 0.75f, true);
+    private final EvictionListener listener;
+    private String foreground;
+    private long evictions;
+
+    PackageStateCache(EvictionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Get the state of a package, creating it if needed.
+     */
+    PackageState get(String packageName) {
+        PackageState state = states.get(packageName);
+        if (state == null) {
+            state = new PackageState(packageName);
+            states.put(packageName, state);
+        }
+        return state;
+    }
+
+    /**
+     * Get the state of a package, or null if it has none.
+     */
+    PackageState peek(String packageName) {
+        return states.get(packageName);
+    }
+
+    /**
+     * Remember that a package has come to the foreground, and when the previous one left it.
+     */
+    void setForeground(String packageName, long nowMs) {
+        if (packageName.equals(foreground)) return;
+        PackageState previous = foreground != null ? states.get(foreground) : null;
+        if (previous != null) previous.backgroundSinceMs = nowMs;
+        foreground = packageName;
+        PackageState current = states.get(packageName);
+        if (current != null) current.backgroundSinceMs = 0;
+    }
+
+    /**
+     * Evict the states of packages that have been in the background for at least the timeout.
+     */
+    void evictBackground(long nowMs) {
+        evictIf(state -> state.backgroundSinceMs > 0 && nowMs - state.backgroundSinceMs >= BACKGROUND_TIMEOUT_MS,
+                "background timeout");
+    }
+
+    /**
+     * Give memory back when the system asks for it: the states of all background packages are
+     * evicted, and if memory is critically low, the caches of the foreground package are trimmed.
+     */
+    void onTrimMemory(int level) {
+        if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) return;
+        evictIf(state -> !state.packageName.equals(foreground), "memory trim level " + level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            for (PackageState state : states.values()) {
+                state.trim();
+            }
+        }
+    }
+
+    /**
+     * Evict least recently used background states while all states together are too large.
+     * Called after each scan, when the caches may have grown.
+     */
+    void enforceLimit() {
+        long footprint = estimateFootprint();
+        if (footprint <= MAX_FOOTPRINT_BYTES) return;
+
+        Iterator<PackageState> iterator = states.values().iterator();
+        while (footprint > MAX_FOOTPRINT_BYTES && iterator.hasNext()) {
+            PackageState state = iterator.next();
+            if (state.packageName.equals(foreground)) continue;
+            footprint -= state.estimateFootprint();
+            evict(state, "footprint limit");
+            iterator.remove();
+        }
+        if (footprint > MAX_FOOTPRINT_BYTES) {
+            // Only the foreground package is left, which keeps its elements
+            for (PackageState state : states.values()) {
+                state.trim();
+            }
+        }
+    }
+
+    /**
+     * Remove the elements of all packages, whose overlays the caller has already removed.
+     */
+    void clearElements() {
+        for (PackageState state : states.values()) {
+            state.elements.clear();
+        }
+    }
+
+    /**
+     * Drop all states, e.g. after the rules have changed. The caller removes the overlays.
+     */
+    void clear() {
+        states.clear();
+    }
+
+    long estimateFootprint() {
+        long footprint = 0;
+        for (PackageState state : states.values()) {
+            footprint += state.estimateFootprint();
+        }
+        return footprint;
+    }
+
+    /**
+     * Describe the size of the cache for diagnostics.
+     */
+    String describe() {
+        StringBuilder description = new StringBuilder();
+        description.append(states.size()).append(" package state(s), about ")
+                .append(estimateFootprint() / 1024).append(" KiB, ").append(evictions).append(" eviction(s)");
+        for (PackageState state : states.values()) {
+            description.append("\n  ").append(state.packageName).append(": ")
+                    .append(state.elements.size()).append(" element(s), ")
+                    .append(state.automata.size()).append(" automata, about ")
+                    .append(state.estimateFootprint() / 1024).append(" KiB");
+        }
+        return description.toString();
+    }
+
+    private void evictIf(Predicate<PackageState> condition, String reason) {
+        Iterator<PackageState> iterator = states.values().iterator();
+        while (iterator.hasNext()) {
+            PackageState state = iterator.next();
+            if (condition.test(state)) {
+                evict(state, reason);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void evict(PackageState state, String reason) {
+        listener.onEvicted(state);
+        evictions++;
+        Log.d(TAG, "Evicted state of " + state.packageName + " (" + reason + ")");
+    }
+
+    /**
+     * State of one package.
+     */
+    static class PackageState {
+        final String packageName;
+        // Blocked elements by rule and element identity
+        final Map<String, BlockedElement> elements = new HashMap<>();
+        // Automata by activity, the empty string if the activity is unknown
+        private final Map<String, SelectorAutomaton> automata = new HashMap<>();
+        private long ruleVersion; // Version of the rule snapshot the automata were compiled from
+        long backgroundSinceMs; // 0 while in the foreground
+
+        PackageState(String packageName) {
+            this.packageName = packageName;
+        }
+
+        /**
+         * Get the automaton of an activity, compiling it if needed.
+         *
+         * @param activity The class name of the foreground activity, or null if unknown
+         */
+        SelectorAutomaton automatonFor(String activity, RuleSnapshot snapshot) {
+            if (snapshot.version != ruleVersion) {
+                automata.clear();
+                ruleVersion = snapshot.version;
+            }
+            String key = activity != null ? activity : "";
+            SelectorAutomaton automaton = automata.get(key);
+            if (automaton == null) {
+                automaton = snapshot.index.newAutomaton(packageName, activity);
+                automata.put(key, automaton);
+            }
+            return automaton;
+        }
+
+        long estimateFootprint() {
+            long footprint = elements.size() * ELEMENT_BYTES;
+            for (SelectorAutomaton automaton : automata.values()) {
+                footprint += automaton.estimateFootprint();
+            }
+            return footprint;
+        }
+
+        /**
+         * Drop the caches that later scans build up again.
+         */
+        void trim() {
+            for (SelectorAutomaton automaton : automata.values()) {
+                automaton.trim();
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package net.kollnig.greasemilkyway;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Trie of rules with package globs, keyed by the dot-separated segments of the package name,
+ * e.g. com, google, android, {@literal *} for com.google.android.{@literal *}.
+ * <p>
+ * Segments without wildcards are followed by a map lookup, so looking up a package takes one step
+ * per segment plus one per wildcard segment on the way. A segment with wildcards matches within
+ * a single segment, except for a trailing * which matches all remaining segments.
+ */
+class PackageTrie {
+    private final Node root = new Node();
+
+    void add(FilterRule rule) {
+        String[] segments = rule.packageName.split("\\.");
+        Node node = root;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.equals("*") && i == segments.length - 1) {
+                node.remaining.add(rule);
+                return;
+            }
+            if (isPattern(segment)) {
+                Node child = null;
+                for (PatternEdge edge : node.patterns) {
+                    if (edge.glob.equals(segment)) child = edge.node;
+                }
+                if (child == null) {
+                    child = new Node();
+                    node.patterns.add(new PatternEdge(segment, child));
+                }
+                node = child;
+            } else {
+                node = node.children.computeIfAbsent(segment, k -> new Node());
+            }
+        }
+        node.rules.add(rule);
+    }
+
+    /**
+     * Get all rules whose package glob matches a package name.
+     */
+    List<FilterRule> find(String packageName) {
+        List<FilterRule> found = new ArrayList<>();
+        find(root, packageName.split("\\."), 0, found);
+        return found;
+    }
+
+    private void find(Node node, String[] segments, int index, List<FilterRule> found) {
+        if (index == segments.length) {
+            found.addAll(node.rules);
+            return;
+        }
+        // A trailing * needs at least one more segment
+        found.addAll(node.remaining);
+
+        String segment = segments[index];
+        Node child = node.children.get(segment);
+        if (child != null) {
+            find(child, segments, index + 1, found);
+        }
+        for (PatternEdge edge : node.patterns) {
+            if (edge.pattern.matcher(segment).matches()) {
+                find(edge.node, segments, index + 1, found);
+            }
+        }
+    }
+
+    static boolean isPattern(String packageName) {
+        return packageName.indexOf('*') >= 0 || packageName.indexOf('?') >= 0;
+    }
+
+    /**
+     * Compiles a package glob with the same semantics as the trie, for matching single packages.
+     */
+    static Pattern toPattern(String glob) {
+        String[] segments = glob.split("\\.");
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < segments.length; i++) {
+            if (i > 0) regex.append("\\.");
+            if (segments[i].equals("*") && i == segments.length - 1) {
+                regex.append(".+");
+            } else {
+                // Wildcards do not cross segment boundaries
+                for (char c : segments[i].toCharArray()) {
+                    if (c == '*') {
+                        regex.append("[^.]*");
+                    } else if (c == '?') {
+                        regex.append("[^.]");
+                    } else {
+                        regex.append(Pattern.quote(String.valueOf(c)));
+                    }
+                }
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static class Node {
+        final Map<String, Node> children = new HashMap<>();
+        final List<PatternEdge> patterns = new ArrayList<>();
+        final List<FilterRule> rules = new ArrayList<>();
+        // Rules ending in a trailing *, which match any number of further segments
+        final List<FilterRule> remaining = new ArrayList<>();
+    }
+
+    private static class PatternEdge {
+        final String glob;
+        final Pattern pattern;
+        final Node node;
+
+        PatternEdge(String glob, Node node) {
+            this.glob = glob;
+            this.pattern = FilterRuleParser.globToPattern(glob);
+            this.node = node;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package net.kollnig.greasemilkyway;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Trie of the structural paths of all rules that share the same anchor view.
+ * A path such as 0/2/{@literal *}/1 is navigated from the anchor with direct child lookups, so only the
+ * nodes on the paths are touched instead of the whole tree. Rules with a common path prefix
+ * share the lookups of that prefix.
+ */
+class PathTrie {
+    static final int WILDCARD = -1;
+
+    private final Node root = new Node();
+    private final List<FilterRule> rules = new ArrayList<>();
+
+    void add(FilterRule rule) {
+        rules.add(rule);
+        Node node = root;
+        for (int index : rule.path) {
+            if (index == WILDCARD) {
+                if (node.wildcard == null) node.wildcard = new Node();
+                node = node.wildcard;
+            } else {
+                node = node.children.computeIfAbsent(index, k -> new Node());
+            }
+        }
+        node.rules.add(rule);
+    }
+
+    /**
+     * Get all rules in this trie.
+     */
+    List<FilterRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Follow all paths from an anchor node and report the nodes at their ends.
+     *
+     * @param active Only rules in this set are reported
+     * @return The number of nodes that were examined
+     */
+    int apply(AccessibilityNodeInfo anchor, Set<FilterRule> active, MatchListener listener) {
+        return apply(anchor, root, active, listener);
+    }
+
+    private int apply(AccessibilityNodeInfo node, Node trieNode, Set<FilterRule> active, MatchListener listener) {
+        if (!node.isVisibleToUser()) return 1;
+        int visited = 1;
+
+        for (FilterRule rule : trieNode.rules) {
+            if (active.contains(rule)) {
+                listener.onMatch(rule, node);
+            }
+        }
+
+        int childCount = node.getChildCount();
+        if (trieNode.wildcard != null) {
+            // Every child has to be visited, also follow the indexed paths on the way
+            for (int i = 0; i < childCount; i++) {
+                AccessibilityNodeInfo child = node.getChild(i);
+                if (child == null) continue;
+                try {
+                    visited += apply(child, trieNode.wildcard, active, listener);
+                    Node indexed = trieNode.children.get(i);
+                    if (indexed != null) {
+                        visited += apply(child, indexed, active, listener);
+                    }
+                } finally {
+                    child.recycle();
+                }
+            }
+        } else {
+            for (Map.Entry<Integer, Node> entry : trieNode.children.entrySet()) {
+                int index = entry.getKey();
+                if (index >= childCount) break;
+                AccessibilityNodeInfo child = node.getChild(index);
+                if (child == null) continue;
+                try {
+                    visited += apply(child, entry.getValue(), active, listener);
+                } finally {
+                    child.recycle();
+                }
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Parses a path such as 0/2/{@literal *}/1 into child indices, with {@link #WILDCARD} for *.
+     *
+     * @throws NumberFormatException if a segment is neither a non-negative index nor *, or if the
+     *                               path is empty, which would block the anchor itself
+     */
+    static int[] parse(String path) {
+        List<Integer> indices = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            segment = segment.trim();
+            if (segment.isEmpty()) continue;
+            if (segment.equals("*")) {
+                indices.add(WILDCARD);
+            } else {
+                int index = Integer.parseInt(segment);
+                if (index < 0) throw new NumberFormatException("Negative child index: " + segment);
+                indices.add(index);
+            }
+        }
+        if (indices.isEmpty()) throw new NumberFormatException("Empty path: " + path);
+        int[] result = new int[indices.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = indices.get(i);
+        }
+        return result;
+    }
+
+    interface MatchListener {
+        void onMatch(FilterRule rule, AccessibilityNodeInfo node);
+    }
+
+    private static class Node {
+        // Sorted, so that lookups can stop at the first index beyond the child count
+        final TreeMap<Integer, Node> children = new TreeMap<>();
+        final List<FilterRule> rules = new ArrayList<>();
+        Node wildcard;
+    }
+}
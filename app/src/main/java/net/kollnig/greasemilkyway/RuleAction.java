@@ -0,0 +1,54 @@
+package net.kollnig.greasemilkyway;
+
+/**
+ * What a rule does instead of covering the views it matches with overlays, e.g. leaving a screen
+ * that should never be seen with a single back press.
+ */
+class RuleAction {
+    static final int BACK = 0;
+    static final int SCROLL_PAST = 1;
+    static final int CLICK = 2;
+
+    final int type;
+    // View to click, for {@link #CLICK}
+    final String viewId;
+
+    private RuleAction(int type, String viewId) {
+        this.type = type;
+        this.viewId = viewId;
+    }
+
+    /**
+     * Parse an action: back, scrollPast or click:&lt;view-id&gt;.
+     *
+     * @throws IllegalArgumentException If the action is unknown
+     */
+    static RuleAction parse(String value) {
+        if (value.equals("back")) return new RuleAction(BACK, null);
+        if (value.equals("scrollPast")) return new RuleAction(SCROLL_PAST, null);
+        if (value.startsWith("click:")) {
+            String viewId = value.substring("click:".length()).trim();
+            if (!viewId.isEmpty()) return new RuleAction(CLICK, viewId);
+        }
+        throw new IllegalArgumentException("Unknown action: " + value);
+    }
+
+    /**
+     * Get the full resource name of the view to click, qualifying a plain ID with the package.
+     */
+    String viewIdIn(String packageName) {
+        return viewId.contains(":id/") ? viewId : packageName + ":id/" + viewId;
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case BACK:
+                return "back";
+            case SCROLL_PAST:
+                return "scrollPast";
+            default:
+                return "click:" + viewId;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package net.kollnig.greasemilkyway;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the enabled rules by package and activity, so that a scan only evaluates
+ * the rules that apply to the current screen. Lookups are memoised in concurrent maps, so that
+ * the index of a {@link RuleSnapshot} can be shared between threads.
+ */
+class RuleIndex {
+    // Node properties that rules depend on beyond the structure of the tree
+    static final int DEPENDS_ON_TEXT = 1;
+    static final int DEPENDS_ON_DESCRIPTION = 2;
+
+    // Rules with an exact package name
+    private final Map<String, List<FilterRule>> byPackage = new HashMap<>();
+    // Rules with a package glob
+    private final PackageTrie packagePatterns = new PackageTrie();
+    // Position of each rule in the configuration, to keep resolved rule lists in that order
+    private final Map<FilterRule, Integer> order = new HashMap<>();
+    // Memoised rules of exact and glob packages per package, see {@link #rulesFor(String)}
+    private final Map<String, List<FilterRule>> resolved = new ConcurrentHashMap<>();
+    // Shared path tries per package and anchor view ID, the empty string anchors at the root
+    private final Map<String, Map<String, PathTrie>> pathTries = new HashMap<>();
+    // Memoised rule lists per package and activity, see {@link #rulesFor(String, String)}
+    private final Map<String, List<FilterRule>> byActivity = new ConcurrentHashMap<>();
+    // Memoised dependencies per package, see {@link #dependenciesFor(String)}
+    private final Map<String, Integer> dependencies = new ConcurrentHashMap<>();
+
+    /**
+     * @param rules The enabled rules, see {@link RuleSnapshot#enabledRules}
+     */
+    RuleIndex(List<FilterRule> rules) {
+        for (FilterRule rule : rules) {
+            order.put(rule, order.size());
+            if (rule.isPackagePattern()) {
+                packagePatterns.add(rule);
+            } else {
+                byPackage.computeIfAbsent(rule.packageName, k -> new ArrayList<>()).add(rule);
+            }
+            if (rule.path != null) {
+                pathTries.computeIfAbsent(rule.packageName, k -> new HashMap<>())
+                        .computeIfAbsent(anchor(rule), k -> new PathTrie())
+                        .add(rule);
+            }
+        }
+    }
+
+    /**
+     * Get the path trie shared by all path rules with the same package and anchor as the given rule.
+     */
+    PathTrie pathTrie(FilterRule rule) {
+        Map<String, PathTrie> tries = pathTries.get(rule.packageName);
+        return tries != null ? tries.get(anchor(rule)) : null;
+    }
+
+    private static String anchor(FilterRule rule) {
+        return rule.targetViewId != null ? rule.targetViewId : "";
+    }
+
+    boolean hasRules(CharSequence packageName) {
+        return packageName != null && !rulesFor(packageName.toString()).isEmpty();
+    }
+
+    /**
+     * Get the enabled rules that apply to a package, by exact name or by glob.
+     */
+    List<FilterRule> rulesFor(String packageName) {
+        List<FilterRule> packageRules = resolved.get(packageName);
+        if (packageRules == null) {
+            List<FilterRule> exact = byPackage.get(packageName);
+            List<FilterRule> matched = packagePatterns.find(packageName);
+            if (matched.isEmpty()) {
+                packageRules = exact != null ? exact : Collections.emptyList();
+            } else {
+                packageRules = new ArrayList<>(matched);
+                if (exact != null) packageRules.addAll(exact);
+                packageRules.sort((a, b) -> Integer.compare(order.get(a), order.get(b)));
+            }
+            resolved.put(packageName, packageRules);
+        }
+        return packageRules;
+    }
+
+    /**
+     * Get the enabled rules that apply to an activity of a package.
+     *
+     * @param activity The class name of the foreground activity, or null if unknown
+     */
+    List<FilterRule> rulesFor(String packageName, String activity) {
+        List<FilterRule> packageRules = rulesFor(packageName);
+        if (packageRules.isEmpty() || activity == null) return packageRules;
+
+        String key = packageName + "/" + activity;
+        List<FilterRule> activityRules = byActivity.get(key);
+        if (activityRules == null) {
+            activityRules = new ArrayList<>();
+            for (FilterRule rule : packageRules) {
+                if (rule.matchesActivity(activity)) {
+                    activityRules.add(rule);
+                }
+            }
+            byActivity.put(key, activityRules);
+        }
+        return activityRules;
+    }
+
+    /**
+     * Compile the selectors of all rules that apply to an activity of a package into an automaton.
+     * Automata are kept with the state of their package, see {@link PackageStateCache}.
+     *
+     * @param activity The class name of the foreground activity, or null if unknown
+     */
+    SelectorAutomaton newAutomaton(String packageName, String activity) {
+        return new SelectorAutomaton(rulesFor(packageName, activity));
+    }
+
+    /**
+     * Get the node properties that the rules of a package depend on, as {@link #DEPENDS_ON_TEXT}
+     * and {@link #DEPENDS_ON_DESCRIPTION} flags.
+     */
+    int dependenciesFor(String packageName) {
+        Integer flags = dependencies.get(packageName);
+        if (flags == null) {
+            flags = 0;
+            for (FilterRule rule : rulesFor(packageName)) {
+                for (Selector selector : rule.selectors) {
+                    for (Selector.Compound compound : selector.compounds) {
+                        flags |= dependencies(compound);
+                        for (Selector.Compound has : compound.has) {
+                            flags |= dependencies(has);
+                        }
+                    }
+                }
+            }
+            dependencies.put(packageName, flags);
+        }
+        return flags;
+    }
+
+    private static int dependencies(Selector.Compound compound) {
+        int flags = 0;
+        for (Selector.Predicate predicate : compound.predicates) {
+            if (predicate.attribute == Selector.Predicate.TEXT) {
+                flags |= DEPENDS_ON_TEXT;
+            } else if (predicate.attribute == Selector.Predicate.DESC) {
+                flags |= DEPENDS_ON_DESCRIPTION;
+            }
+        }
+        return flags;
+    }
+}
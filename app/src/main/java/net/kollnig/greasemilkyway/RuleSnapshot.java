@@ -0,0 +1,42 @@
+package net.kollnig.greasemilkyway;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The rules as configured at one point in time, with their index. The rules are mutable in the
+ * settings, so a new snapshot is built whenever they change and published to the service as a
+ * whole. A scan reads one snapshot and sees a consistent set of rules without any locking.
+ */
+final class RuleSnapshot {
+    private static final AtomicLong versions = new AtomicLong();
+    static final RuleSnapshot EMPTY = new RuleSnapshot(Collections.emptyList());
+
+    // Increases with every snapshot, to tell whether state compiled from an older one is stale
+    final long version;
+    // All rules, enabled or not
+    final List<FilterRule> rules;
+    // Rules that were enabled when the snapshot was taken
+    final List<FilterRule> enabledRules;
+    final RuleIndex index;
+
+    private RuleSnapshot(List<FilterRule> rules) {
+        List<FilterRule> enabled = new ArrayList<>();
+        for (FilterRule rule : rules) {
+            if (rule.enabled) enabled.add(rule);
+        }
+        this.version = versions.incrementAndGet();
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+        this.enabledRules = Collections.unmodifiableList(enabled);
+        this.index = new RuleIndex(enabledRules);
+    }
+
+    /**
+     * Take a snapshot of rules. Later changes to whether a rule is enabled do not affect it.
+     */
+    static RuleSnapshot of(List<FilterRule> rules) {
+        return new RuleSnapshot(rules);
+    }
+}
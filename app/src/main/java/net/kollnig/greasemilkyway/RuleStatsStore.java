@@ -0,0 +1,346 @@
+package net.kollnig.greasemilkyway;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps rolling cost and selectivity aggregates per rule, keyed by package and app version.
+ * The service records every rule evaluation here; the settings UI reads the persisted values.
+ */
+public class RuleStatsStore {
+    private static final String TAG = "RuleStatsStore";
+    private static final String PREFS_NAME = "RuleStats";
+    private static final long FLUSH_INTERVAL_MS = 10_000;
+    // Once a rule has been evaluated this often, all its counters are halved so old scans fade out
+    private static final long ROLLING_WINDOW_SCANS = 500;
+    // Rules without a single match after this many scans of the same app version are put to sleep
+    private static final long DORMANT_AFTER_SCANS = 2000;
+
+    private final SharedPreferences prefs;
+    private final PackageManager packageManager;
+    private final Map<String, Long> versionCodes = new HashMap<>();
+    private final Map<String, PackageStats> packages = new HashMap<>();
+    private long lastFlush = SystemClock.uptimeMillis();
+
+    public RuleStatsStore(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.packageManager = context.getPackageManager();
+    }
+
+    /**
+     * Get the stats of all rules for the currently installed version of a package.
+     */
+    PackageStats forPackage(String packageName) {
+        long versionCode = getVersionCode(packageName);
+        PackageStats stats = packages.get(packageName);
+        if (stats == null || stats.versionCode != versionCode) {
+            stats = load(packageName, versionCode);
+            packages.put(packageName, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Get the persisted stats of a single rule, or null if it has not been evaluated yet.
+     * The stats of a package glob rule are combined over the apps it was evaluated in, with the
+     * most restricted level of any of them.
+     */
+    Stats getStats(FilterRule rule) {
+        if (!rule.isPackagePattern()) {
+            return forPackage(rule.packageName).rules.get(rule.hashCode());
+        }
+        Stats combined = null;
+        for (String packageName : packagesOf(rule)) {
+            Stats stats = forPackage(packageName).rules.get(rule.hashCode());
+            if (stats == null) continue;
+            if (combined == null) combined = new Stats();
+            combined.add(stats);
+        }
+        return combined;
+    }
+
+    /**
+     * Wake up a dormant rule and reset its scan budget level, in every app for a package glob rule.
+     * A resurrected rule does not become dormant again until the app is updated.
+     */
+    void resurrect(FilterRule rule) {
+        for (String packageName : packagesOf(rule)) {
+            PackageStats stats = forPackage(packageName);
+            // A glob rule is only resurrected where it has been evaluated
+            if (rule.isPackagePattern() && !stats.rules.containsKey(rule.hashCode())) continue;
+            Stats ruleStats = stats.get(rule);
+            ruleStats.dormant = false;
+            ruleStats.resurrected = true;
+            ruleStats.level = ScanBudget.LEVEL_NORMAL;
+            stats.dirty = true;
+            Log.i(TAG, "Resurrected rule \"" + rule.description + "\" for " + packageName);
+        }
+        flush();
+    }
+
+    /**
+     * Get the packages that the stats of a rule are recorded under: the scanned packages, which
+     * for a package glob rule are all the packages it matches that have stats.
+     */
+    private List<String> packagesOf(FilterRule rule) {
+        if (!rule.isPackagePattern()) return Collections.singletonList(rule.packageName);
+        Set<String> packageNames = new LinkedHashSet<>(packages.keySet());
+        for (String key : prefs.getAll().keySet()) {
+            int separator = key.lastIndexOf('@');
+            if (separator > 0) packageNames.add(key.substring(0, separator));
+        }
+        List<String> matching = new ArrayList<>();
+        for (String packageName : packageNames) {
+            if (rule.matchesPackage(packageName)) matching.add(packageName);
+        }
+        return matching;
+    }
+
+    /**
+     * Drop all cached stats and version codes so that they are read again from storage.
+     */
+    void reload() {
+        packages.clear();
+        versionCodes.clear();
+    }
+
+    /**
+     * Forget the cached version code of a package, e.g. after it has been updated.
+     */
+    void invalidateVersion(String packageName) {
+        versionCodes.remove(packageName);
+    }
+
+    long getVersionCode(String packageName) {
+        Long cached = versionCodes.get(packageName);
+        if (cached != null) return cached;
+
+        long versionCode = -1;
+        try {
+            PackageInfo info = packageManager.getPackageInfo(packageName, 0);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                versionCode = info.getLongVersionCode();
+            } else {
+                versionCode = info.versionCode;
+            }
+        } catch (PackageManager.NameNotFoundException e) {
+            // Not installed, stats are kept under version -1
+        }
+        versionCodes.put(packageName, versionCode);
+        return versionCode;
+    }
+
+    void flushIfDue() {
+        if (SystemClock.uptimeMillis() - lastFlush >= FLUSH_INTERVAL_MS) {
+            flush();
+        }
+    }
+
+    void flush() {
+        lastFlush = SystemClock.uptimeMillis();
+        SharedPreferences.Editor editor = null;
+        for (PackageStats stats : packages.values()) {
+            if (!stats.dirty) continue;
+            if (editor == null) editor = prefs.edit();
+
+            // Only the installed version is kept, stats of older versions are dropped
+            for (String key : prefs.getAll().keySet()) {
+                if (key.startsWith(stats.packageName + "@")) {
+                    editor.remove(key);
+                }
+            }
+            editor.putString(key(stats.packageName, stats.versionCode), stats.toJson());
+            stats.dirty = false;
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    private PackageStats load(String packageName, long versionCode) {
+        PackageStats stats = new PackageStats(packageName, versionCode);
+        String json = prefs.getString(key(packageName, versionCode), null);
+        if (json == null) return stats;
+
+        try {
+            JSONObject object = new JSONObject(json);
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String ruleKey = keys.next();
+                Stats ruleStats = Stats.parse(object.getString(ruleKey));
+                if (ruleStats != null) {
+                    stats.rules.put(Integer.parseInt(ruleKey), ruleStats);
+                }
+            }
+        } catch (JSONException | NumberFormatException e) {
+            Log.w(TAG, "Discarding corrupt stats for " + packageName, e);
+        }
+        return stats;
+    }
+
+    private static String key(String packageName, long versionCode) {
+        return packageName + "@" + versionCode;
+    }
+
+    /**
+     * Stats of all rules of one package at one version.
+     */
+    static class PackageStats {
+        final String packageName;
+        final long versionCode;
+        final Map<Integer, Stats> rules = new HashMap<>();
+        boolean dirty;
+
+        PackageStats(String packageName, long versionCode) {
+            this.packageName = packageName;
+            this.versionCode = versionCode;
+        }
+
+        Stats get(FilterRule rule) {
+            return rules.computeIfAbsent(rule.hashCode(), k -> new Stats());
+        }
+
+        void record(FilterRule rule, long timeNs, int nodes, int matches) {
+            Stats stats = get(rule);
+            stats.record(timeNs, nodes, matches);
+            dirty = true;
+
+            if (!stats.dormant && !stats.resurrected
+                    && stats.versionScans >= DORMANT_AFTER_SCANS && stats.versionHits == 0) {
+                stats.dormant = true;
+                Log.i(TAG, "Rule \"" + rule.description + "\" has not matched in " + stats.versionScans
+                        + " scans of " + packageName + " version " + versionCode + ", marking it dormant");
+            }
+        }
+
+        String toJson() {
+            JSONObject object = new JSONObject();
+            try {
+                for (Map.Entry<Integer, Stats> entry : rules.entrySet()) {
+                    object.put(String.valueOf(entry.getKey()), entry.getValue().toString());
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "Error serialising stats", e);
+            }
+            return object.toString();
+        }
+    }
+
+    /**
+     * Rolling cost and match counters of a single rule.
+     */
+    static class Stats {
+        long scans;
+        long hitScans;
+        long matches;
+        long nodes;
+        long timeNs;
+        // Cadence the scan budget watchdog has assigned to this rule, see {@link ScanBudget}
+        int level = ScanBudget.LEVEL_NORMAL;
+        // Counters over the whole lifetime of the app version, never halved
+        long versionScans;
+        long versionHits;
+        boolean dormant;
+        boolean resurrected;
+
+        void record(long timeNs, int nodes, int matches) {
+            versionScans++;
+            if (matches > 0) versionHits++;
+
+            if (scans >= ROLLING_WINDOW_SCANS) {
+                scans /= 2;
+                hitScans /= 2;
+                this.matches /= 2;
+                this.nodes /= 2;
+                this.timeNs /= 2;
+            }
+            scans++;
+            if (matches > 0) hitScans++;
+            this.matches += matches;
+            this.nodes += nodes;
+            this.timeNs += timeNs;
+        }
+
+        /**
+         * Add the counters of the same rule in another app, keeping the more restricted level.
+         */
+        void add(Stats other) {
+            scans += other.scans;
+            hitScans += other.hitScans;
+            matches += other.matches;
+            nodes += other.nodes;
+            timeNs += other.timeNs;
+            level = Math.max(level, other.level);
+            versionScans += other.versionScans;
+            versionHits += other.versionHits;
+            dormant |= other.dormant;
+            resurrected |= other.resurrected;
+        }
+
+        double avgTimeMs() {
+            return scans == 0 ? 0 : timeNs / 1_000_000.0 / scans;
+        }
+
+        long avgNodes() {
+            return scans == 0 ? 0 : nodes / scans;
+        }
+
+        /**
+         * Share of scans in which the rule matched at least once, in percent.
+         */
+        int hitRate() {
+            return scans == 0 ? 0 : (int) (hitScans * 100 / scans);
+        }
+
+        /**
+         * Cost per benefit of the rule; the higher, the sooner it gets demoted when over budget.
+         */
+        double costPerHit() {
+            return avgTimeMs() / (1 + (double) matches / Math.max(1, scans));
+        }
+
+        static Stats parse(String value) {
+            String[] parts = value.split(",");
+            if (parts.length < 5) return null;
+            Stats stats = new Stats();
+            stats.scans = Long.parseLong(parts[0]);
+            stats.hitScans = Long.parseLong(parts[1]);
+            stats.matches = Long.parseLong(parts[2]);
+            stats.nodes = Long.parseLong(parts[3]);
+            stats.timeNs = Long.parseLong(parts[4]);
+            if (parts.length > 5) {
+                stats.level = Integer.parseInt(parts[5]);
+            }
+            if (parts.length > 9) {
+                stats.versionScans = Long.parseLong(parts[6]);
+                stats.versionHits = Long.parseLong(parts[7]);
+                stats.dormant = Boolean.parseBoolean(parts[8]);
+                stats.resurrected = Boolean.parseBoolean(parts[9]);
+            }
+            return stats;
+        }
+
+        @Override
+        public String toString() {
+            return scans + "," + hitScans + "," + matches + "," + nodes + "," + timeNs + "," + level
+                    + "," + versionScans + "," + versionHits + "," + dormant + "," + resurrected;
+        }
+    }
+}
@@ -37,6 +37,7 @@ public class RulesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
     
     private final Context context;
     private final ServiceConfig config;
+    private final RuleStatsStore statsStore;
     private final PackageManager packageManager;
     private final List<Object> items = new ArrayList<>();
     private OnRuleStateChangedListener onRuleStateChangedListener;
@@ -65,6 +66,7 @@ public class RulesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
     public RulesAdapter(Context context, ServiceConfig config) {
         this.context = context;
         this.config = config;
+        this.statsStore = new RuleStatsStore(context);
         this.packageManager = context.getPackageManager();
         this.collapsePrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         this.usesTwoStepFlow = detectTwoStepFlow();
@@ -119,6 +121,7 @@ public class RulesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
 
     public void setRules(List<FilterRule> rules) {
         this.currentRules = rules;
+        statsStore.reload();
         rebuildItemsList();
     }
 
@@ -439,13 +442,60 @@ public class RulesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
 
             // Hide ruleDetails by default
             viewHolder.ruleDetails.setVisibility(View.GONE);
+            List<String> details = new ArrayList<>();
 
             // If the rule has contentDescriptions (desc field), show the alert
             if (!rule.contentDescriptions.isEmpty()) {
-                viewHolder.ruleDetails.setText(context.getString(R.string.rule_requires_english));
+                details.add(context.getString(R.string.rule_requires_english));
+            }
+
+            // Show if the rule is asleep or the scan budget watchdog has slowed it down
+            RuleStatsStore.Stats stats = statsStore.getStats(rule);
+            boolean canResurrect = true;
+            if (stats != null && stats.dormant) {
+                details.add(context.getString(R.string.rule_status_dormant));
+            } else if (stats != null && stats.level == ScanBudget.LEVEL_THROTTLED) {
+                details.add(context.getString(R.string.rule_status_throttled));
+            } else if (stats != null && stats.level == ScanBudget.LEVEL_SUSPENDED) {
+                details.add(context.getString(R.string.rule_status_suspended));
+            } else {
+                canResurrect = false;
+            }
+
+            if (!details.isEmpty()) {
+                viewHolder.ruleDetails.setText(String.join("\n", details));
                 viewHolder.ruleDetails.setVisibility(View.VISIBLE);
             }
 
+            // Tapping a sleeping or slowed down rule wakes it up again
+            if (canResurrect) {
+                viewHolder.itemView.setOnClickListener(v -> {
+                    DistractionControlService service = DistractionControlService.getInstance();
+                    if (service != null) {
+                        service.resurrectRule(rule);
+                    } else {
+                        statsStore.resurrect(rule);
+                    }
+                    statsStore.reload();
+                    int adapterPosition = viewHolder.getAdapterPosition();
+                    if (adapterPosition != RecyclerView.NO_POSITION) {
+                        notifyItemChanged(adapterPosition);
+                    }
+                });
+            } else {
+                viewHolder.itemView.setOnClickListener(null);
+                viewHolder.itemView.setClickable(false);
+            }
+
+            // Show the measured cost of the rule next to its switch
+            if (stats != null && stats.scans > 0) {
+                viewHolder.ruleStats.setText(context.getString(R.string.rule_stats,
+                        stats.avgTimeMs(), stats.avgNodes(), stats.hitRate()));
+                viewHolder.ruleStats.setVisibility(View.VISIBLE);
+            } else {
+                viewHolder.ruleStats.setVisibility(View.GONE);
+            }
+
             // Check if the package is disabled
             boolean isPackageDisabled = config.isPackageDisabled(rule.packageName);
             
@@ -754,6 +804,7 @@ public class RulesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
     public static class RuleViewHolder extends RecyclerView.ViewHolder {
         final TextView ruleDescription;
         final TextView ruleDetails;
+        final TextView ruleStats;
         final MaterialSwitch ruleSwitch;
         // Removed position field
 
@@ -761,6 +812,7 @@ public class RulesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
             super(itemView);
             ruleDescription = itemView.findViewById(R.id.rule_description);
             ruleDetails = itemView.findViewById(R.id.rule_details);
+            ruleStats = itemView.findViewById(R.id.rule_stats);
             ruleSwitch = itemView.findViewById(R.id.rule_switch);
         }
     }
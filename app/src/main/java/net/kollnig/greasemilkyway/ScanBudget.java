@@ -0,0 +1,138 @@
+package net.kollnig.greasemilkyway;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Watchdog that enforces a per-package scan budget.
+ * If scans of a package keep exceeding the budget, the rule with the highest cost per hit is
+ * first throttled to a slower cadence and eventually suspended. After a long run of scans within
+ * budget, the most valuable demoted rule is promoted again.
+ */
+class ScanBudget {
+    private static final String TAG = "ScanBudget";
+
+    static final long BUDGET_NS = 8_000_000; // 8 ms per package scan
+    static final int LEVEL_NORMAL = 0;
+    static final int LEVEL_THROTTLED = 1;
+    static final int LEVEL_SUSPENDED = 2;
+
+    private static final int OVER_BUDGET_LIMIT = 3; // Consecutive slow scans before demoting a rule
+    private static final int RECOVERY_SCANS = 100; // Consecutive fast scans before promoting a rule
+    private static final int THROTTLE_INTERVAL = 4; // Throttled rules run on every n-th scan only
+
+    private final Map<String, PackageState> packages = new HashMap<>();
+
+    /**
+     * Start a new scan of a package.
+     *
+     * @return The number of the scan, used to pace throttled rules
+     */
+    long startScan(String packageName) {
+        return state(packageName).scanNumber++;
+    }
+
+    /**
+     * Whether a rule should be evaluated in the given scan.
+     */
+    static boolean shouldEvaluate(RuleStatsStore.Stats stats, long scanNumber) {
+        switch (stats.level) {
+            case LEVEL_SUSPENDED:
+                return false;
+            case LEVEL_THROTTLED:
+                return scanNumber % THROTTLE_INTERVAL == 0;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Record the total time a scan of a package took and demote or promote a rule if needed.
+     *
+     * @return True if the level of any rule changed
+     */
+    boolean onScanFinished(RuleStatsStore.PackageStats stats, List<FilterRule> rules, long elapsedNs) {
+        PackageState state = state(stats.packageName);
+        if (elapsedNs > BUDGET_NS) {
+            state.underBudget = 0;
+            if (++state.overBudget >= OVER_BUDGET_LIMIT) {
+                state.overBudget = 0;
+                return demote(stats, rules, elapsedNs);
+            }
+        } else {
+            state.overBudget = 0;
+            if (++state.underBudget >= RECOVERY_SCANS) {
+                state.underBudget = 0;
+                return promote(stats, rules);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forget all scan history, e.g. after the rules have changed.
+     */
+    void reset() {
+        packages.clear();
+    }
+
+    private boolean demote(RuleStatsStore.PackageStats stats, List<FilterRule> rules, long elapsedNs) {
+        FilterRule worst = null;
+        double worstCost = -1;
+        for (FilterRule rule : rules) {
+            RuleStatsStore.Stats ruleStats = stats.get(rule);
+            if (ruleStats.dormant || ruleStats.level >= LEVEL_SUSPENDED) continue;
+            double cost = ruleStats.costPerHit();
+            if (cost > worstCost) {
+                worst = rule;
+                worstCost = cost;
+            }
+        }
+        if (worst == null) return false;
+
+        RuleStatsStore.Stats worstStats = stats.get(worst);
+        worstStats.level++;
+        stats.dirty = true;
+        Log.w(TAG, String.format("Scans of %s took %.1f ms (budget %.1f ms), %s rule \"%s\" (%.2f ms per scan)",
+                stats.packageName, elapsedNs / 1_000_000.0, BUDGET_NS / 1_000_000.0,
+                worstStats.level == LEVEL_SUSPENDED ? "suspending" : "throttling",
+                worst.description, worstStats.avgTimeMs()));
+        return true;
+    }
+
+    private boolean promote(RuleStatsStore.PackageStats stats, List<FilterRule> rules) {
+        FilterRule best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (FilterRule rule : rules) {
+            RuleStatsStore.Stats ruleStats = stats.get(rule);
+            if (ruleStats.level == LEVEL_NORMAL) continue;
+            double cost = ruleStats.costPerHit();
+            if (cost < bestCost) {
+                best = rule;
+                bestCost = cost;
+            }
+        }
+        if (best == null) return false;
+
+        RuleStatsStore.Stats bestStats = stats.get(best);
+        bestStats.level--;
+        stats.dirty = true;
+        Log.i(TAG, "Scans of " + stats.packageName + " are within budget again, "
+                + (bestStats.level == LEVEL_NORMAL ? "restoring" : "throttling")
+                + " rule \"" + best.description + "\"");
+        return true;
+    }
+
+    private PackageState state(String packageName) {
+        return packages.computeIfAbsent(packageName, k -> new PackageState());
+    }
+
+    private static class PackageState {
+        long scanNumber;
+        int overBudget;
+        int underBudget;
+    }
+}
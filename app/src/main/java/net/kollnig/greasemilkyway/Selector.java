@@ -0,0 +1,255 @@
+package net.kollnig.greasemilkyway;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A compiled CSS-like selector, i.e. a chain of compounds joined by descendant or child combinators.
+ * The last compound is the subject, the view that gets blocked.
+ */
+class Selector {
+    static final int DESCENDANT = 0;
+    static final int CHILD = 1;
+
+    final List<Compound> compounds;
+    // Relation of each compound to the previous one; the first compound can match anywhere
+    final List<Integer> combinators;
+
+    Selector(List<Compound> compounds, List<Integer> combinators) {
+        this.compounds = compounds;
+        this.combinators = combinators;
+    }
+
+    Compound subject() {
+        return compounds.get(compounds.size() - 1);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < compounds.size(); i++) {
+            if (i > 0) sb.append(combinators.get(i) == CHILD ? " > " : " ");
+            sb.append(compounds.get(i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A set of conditions on a single view: its class, view ID, description, text and descendants.
+     */
+    static class Compound {
+        // Simple or fully qualified class name, null matches any class
+        final String className;
+        final List<Predicate> predicates;
+        // Compounds of which at least one descendant each must match, only allowed on the subject
+        final List<Compound> has;
+
+        Compound(String className, List<Predicate> predicates, List<Compound> has) {
+            this.className = className;
+            this.predicates = predicates;
+            this.has = has;
+        }
+
+        /**
+         * Whether the view matches, not taking {@link #has} into account.
+         */
+        boolean matches(NodeProperties node) {
+            if (className != null && !matchesClassName(node.getClassName())) return false;
+            for (Predicate predicate : predicates) {
+                if (!predicate.matches(node)) return false;
+            }
+            return true;
+        }
+
+        private boolean matchesClassName(String nodeClassName) {
+            if (nodeClassName == null) return false;
+            if (className.indexOf('.') >= 0) return className.equals(nodeClassName);
+            return nodeClassName.equals(className) || nodeClassName.endsWith("." + className);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(className != null ? className : "*");
+            for (Predicate predicate : predicates) sb.append(predicate);
+            for (Compound compound : has) sb.append(":has(").append(compound).append(')');
+            return sb.toString();
+        }
+    }
+
+    /**
+     * An attribute condition, which holds if the attribute matches any of the values.
+     */
+    static class Predicate {
+        static final int ID = 0;
+        static final int DESC = 1;
+        static final int TEXT = 2;
+
+        final int attribute;
+        // View IDs for ID, patterns for DESC and TEXT
+        final Set<String> values;
+        final List<TextPattern> patterns;
+
+        Predicate(int attribute, Set<String> values) {
+            this.attribute = attribute;
+            this.values = values;
+            this.patterns = null;
+        }
+
+        Predicate(int attribute, List<TextPattern> patterns) {
+            this.attribute = attribute;
+            this.values = null;
+            this.patterns = patterns;
+        }
+
+        boolean matches(NodeProperties node) {
+            switch (attribute) {
+                case ID:
+                    String viewId = node.getViewId();
+                    if (viewId == null) return false;
+                    for (String value : values) {
+                        if (matchesViewId(viewId, value)) return true;
+                    }
+                    return false;
+                case DESC:
+                    return node.descriptionMatches(patterns);
+                case TEXT:
+                    return node.textMatches(patterns);
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * View IDs can be given in full (com.example:id/name) or by their name only.
+         */
+        private static boolean matchesViewId(String viewId, String value) {
+            if (value.indexOf(':') >= 0) return viewId.equals(value);
+            return viewId.endsWith(":id/" + value);
+        }
+
+        @Override
+        public String toString() {
+            String name = attribute == ID ? "id" : attribute == DESC ? "desc" : "text";
+            List<String> parts = new ArrayList<>();
+            if (values != null) {
+                for (String value : values) parts.add("[" + name + "=\"" + value + "\"]");
+            } else {
+                for (TextPattern pattern : patterns) parts.add("[" + name + "=\"" + pattern + "\"]");
+            }
+            return String.join("|", parts);
+        }
+    }
+
+    /**
+     * Lazily read properties of the node that is currently being matched, so that every property
+     * is fetched at most once per node no matter how many selectors look at it.
+     */
+    static class NodeProperties {
+        // Shared matchers of all description and text patterns, or null to test patterns one by one
+        private final TextMatcher descriptionMatcher;
+        private final TextMatcher textMatcher;
+        private AccessibilityNodeInfo node;
+        private String className;
+        private String viewId;
+        private String description;
+        private String text;
+        private BitSet descriptionHits;
+        private BitSet textHits;
+        private int loaded;
+
+        NodeProperties() {
+            this(null, null);
+        }
+
+        NodeProperties(TextMatcher descriptionMatcher, TextMatcher textMatcher) {
+            this.descriptionMatcher = descriptionMatcher;
+            this.textMatcher = textMatcher;
+        }
+
+        void reset(AccessibilityNodeInfo node) {
+            this.node = node;
+            this.loaded = 0;
+        }
+
+        AccessibilityNodeInfo getNode() {
+            return node;
+        }
+
+        String getClassName() {
+            if ((loaded & 1) == 0) {
+                CharSequence value = node.getClassName();
+                className = value != null ? value.toString() : null;
+                loaded |= 1;
+            }
+            return className;
+        }
+
+        String getViewId() {
+            if ((loaded & 2) == 0) {
+                viewId = node.getViewIdResourceName();
+                loaded |= 2;
+            }
+            return viewId;
+        }
+
+        String getDescription() {
+            if ((loaded & 4) == 0) {
+                CharSequence value = node.getContentDescription();
+                description = value != null ? value.toString() : null;
+                loaded |= 4;
+            }
+            return description;
+        }
+
+        String getText() {
+            if ((loaded & 8) == 0) {
+                CharSequence value = node.getText();
+                text = value != null ? value.toString() : null;
+                loaded |= 8;
+            }
+            return text;
+        }
+
+        boolean descriptionMatches(List<TextPattern> patterns) {
+            String value = getDescription();
+            if (value == null) return false;
+            if (descriptionMatcher == null) return anyMatches(patterns, value);
+            if ((loaded & 16) == 0) {
+                // One pass over the description for all patterns of all rules
+                descriptionHits = descriptionMatcher.match(value);
+                loaded |= 16;
+            }
+            return anyHit(descriptionMatcher, descriptionHits, patterns);
+        }
+
+        boolean textMatches(List<TextPattern> patterns) {
+            String value = getText();
+            if (value == null) return false;
+            if (textMatcher == null) return anyMatches(patterns, value);
+            if ((loaded & 32) == 0) {
+                textHits = textMatcher.match(value);
+                loaded |= 32;
+            }
+            return anyHit(textMatcher, textHits, patterns);
+        }
+
+        private static boolean anyMatches(List<TextPattern> patterns, String value) {
+            for (TextPattern pattern : patterns) {
+                if (pattern.matches(value)) return true;
+            }
+            return false;
+        }
+
+        private static boolean anyHit(TextMatcher matcher, BitSet hits, List<TextPattern> patterns) {
+            for (TextPattern pattern : patterns) {
+                int id = matcher.idOf(pattern);
+                if (id >= 0 && hits.get(id)) return true;
+            }
+            return false;
+        }
+    }
+}
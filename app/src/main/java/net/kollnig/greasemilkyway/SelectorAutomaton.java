@@ -0,0 +1,650 @@
+package net.kollnig.greasemilkyway;
+
+import android.graphics.Rect;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * All selectors of a package compiled into one automaton, which is evaluated during a single
+ * depth-first traversal of the view tree.
+ * <p>
+ * Every compound of every selector is a step. While descending, each node carries the set of
+ * steps that may match it: the first step of every selector, steps following a descendant
+ * combinator from any ancestor, and steps following a child combinator from the parent.
+ * Subjects with :has() are resolved when the traversal leaves them, from the :has() compounds
+ * that matched in their subtree.
+ * <p>
+ * Children are visited hottest first, i.e. those on the paths to the views that matched in the
+ * previous scan, so that rules with a {@link FilterRule#maxMatches} are satisfied early. Once all
+ * rules of a scan are bounded and satisfied, the rest of the tree is skipped.
+ * <p>
+ * The outcome of every larger subtree is memoised under a structural fingerprint of the path to
+ * it (class, view ID, child count, visibility and bounds of each node on the way). A later scan
+ * that reaches a subtree with the same fingerprint and automaton state outside of the regions
+ * that changed since the last scan replays the memoised matches instead of descending.
+ */
+class SelectorAutomaton {
+    private static final int TIME_CHECK_INTERVAL = 32; // Nodes between two budget checks
+    private static final int MIN_MEMO_NODES = 8; // Smaller subtrees are cheaper to visit than to memoise
+    private static final int MAX_MEMO_COST = 4096; // Memoised subtrees plus the matches they hold
+    // Rough sizes for footprint estimates, in bytes
+    private static final int STEP_BYTES = 128;
+    private static final int MEMO_COST_BYTES = 96;
+    private static final int HEAT_NODE_BYTES = 64;
+
+    private final List<FilterRule> rules = new ArrayList<>();
+    private final Map<FilterRule, Integer> ruleIndices = new HashMap<>();
+    private final List<Step> steps = new ArrayList<>();
+    private final List<Integer> startSteps = new ArrayList<>();
+    // The :has() compounds of all subjects, referenced by index from the steps
+    private final List<Selector.Compound> hasCompounds = new ArrayList<>();
+    // All description and text patterns, so that each node is scanned once per attribute
+    private final TextMatcher descriptionMatcher;
+    private final TextMatcher textMatcher;
+    // Paths to the views that matched in the last completed scan
+    private HeatNode heat = new HeatNode();
+    // Outcomes of subtrees in previous scans, least recently used first
+    private final LinkedHashMap<MemoKey, MemoEntry> memo = new LinkedHashMap<>(64, 0.75f, true);
+    private int memoCost;
+
+    SelectorAutomaton(List<FilterRule> rules) {
+        for (FilterRule rule : rules) {
+            if (rule.selectors.isEmpty()) continue;
+            ruleIndices.put(rule, this.rules.size());
+            this.rules.add(rule);
+            for (Selector selector : rule.selectors) {
+                compile(rule, selector);
+            }
+        }
+
+        List<TextPattern> descriptions = new ArrayList<>();
+        List<TextPattern> texts = new ArrayList<>();
+        for (Step step : steps) {
+            collectPatterns(step.compound, descriptions, texts);
+        }
+        for (Selector.Compound compound : hasCompounds) {
+            collectPatterns(compound, descriptions, texts);
+        }
+        descriptionMatcher = new TextMatcher(descriptions);
+        textMatcher = new TextMatcher(texts);
+    }
+
+    private static void collectPatterns(Selector.Compound compound, List<TextPattern> descriptions,
+                                        List<TextPattern> texts) {
+        for (Selector.Predicate predicate : compound.predicates) {
+            if (predicate.attribute == Selector.Predicate.DESC) {
+                descriptions.addAll(predicate.patterns);
+            } else if (predicate.attribute == Selector.Predicate.TEXT) {
+                texts.addAll(predicate.patterns);
+            }
+        }
+    }
+
+    private void compile(FilterRule rule, Selector selector) {
+        startSteps.add(steps.size());
+        int count = selector.compounds.size();
+        for (int i = 0; i < count; i++) {
+            Selector.Compound compound = selector.compounds.get(i);
+            boolean subject = i == count - 1;
+            int[] has = new int[subject ? compound.has.size() : 0];
+            for (int j = 0; j < has.length; j++) {
+                has[j] = hasCompounds.size();
+                hasCompounds.add(compound.has.get(j));
+            }
+            steps.add(new Step(compound, selector.combinators.get(i), subject ? -1 : steps.size() + 1,
+                    ruleIndices.get(rule), has));
+        }
+    }
+
+    List<FilterRule> getRules() {
+        return rules;
+    }
+
+    boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * Start a new scan of a view tree.
+     *
+     * @param active Only selectors of these rules are evaluated
+     * @param dirty  Screen regions that may have changed since the last scan, or null if all may have
+     */
+    Scan newScan(AccessibilityNodeInfo root, Set<FilterRule> active, List<Rect> dirty) {
+        return new Scan(root, active, dirty);
+    }
+
+    /**
+     * Estimate the memory held by the automaton and its caches, in bytes.
+     */
+    long estimateFootprint() {
+        return (long) steps.size() * STEP_BYTES + (long) memoCost * MEMO_COST_BYTES
+                + (long) countHeatNodes(heat) * HEAT_NODE_BYTES;
+    }
+
+    private static int countHeatNodes(HeatNode node) {
+        int count = 1;
+        for (HeatNode child : node.children.values()) {
+            count += countHeatNodes(child);
+        }
+        return count;
+    }
+
+    /**
+     * Drop the memoised subtrees and match heat, which later scans build up again.
+     */
+    void trim() {
+        memo.clear();
+        memoCost = 0;
+        heat = new HeatNode();
+    }
+
+    private void remember(MemoKey key, MemoEntry entry) {
+        MemoEntry previous = memo.put(key, entry);
+        if (previous != null) memoCost -= previous.cost();
+        memoCost += entry.cost();
+
+        Iterator<MemoEntry> eldest = memo.values().iterator();
+        while (memoCost > MAX_MEMO_COST && eldest.hasNext()) {
+            memoCost -= eldest.next().cost();
+            eldest.remove();
+        }
+    }
+
+    interface MatchListener {
+        /**
+         * Called for every view with bounds that is the subject of a matching selector,
+         * at most once per rule.
+         */
+        void onMatch(FilterRule rule, Rect bounds, ElementId id);
+    }
+
+    /**
+     * A traversal of one view tree, which can be paused when out of time and resumed later.
+     */
+    class Scan {
+        private final ArrayDeque<Frame> stack = new ArrayDeque<>();
+        private final Selector.NodeProperties properties =
+                new Selector.NodeProperties(descriptionMatcher, textMatcher);
+        private final BitSet reported = new BitSet();
+        private final int[] tests = new int[rules.size()];
+        private final int[] matches = new int[rules.size()];
+        // Bounded rules that have reached their maximum number of matches
+        private final BitSet satisfied = new BitSet();
+        private final HeatNode newHeat = new HeatNode();
+        private final List<Rect> dirty;
+        private final Rect bounds = new Rect();
+        // Number of active rules that can still match
+        private int remaining;
+        // Number of frames on the stack with subjects waiting for their :has() compounds
+        private int pendingHas;
+        private int nodes;
+        private int replayedNodes;
+        private long elapsedNs;
+
+        private Scan(AccessibilityNodeInfo root, Set<FilterRule> active, List<Rect> dirty) {
+            this.dirty = dirty;
+            BitSet pending = new BitSet(steps.size());
+            BitSet activeRules = new BitSet(rules.size());
+            for (int start : startSteps) {
+                int rule = steps.get(start).rule;
+                if (active.contains(rules.get(rule))) {
+                    pending.set(start);
+                    activeRules.set(rule);
+                }
+            }
+            remaining = activeRules.cardinality();
+            if (!pending.isEmpty()) {
+                // The caller keeps ownership of the root, the scan may outlive it
+                stack.push(new Frame(AccessibilityNodeInfo.obtain(root), pending, false, -1, heat));
+            }
+        }
+
+        /**
+         * Continue the traversal until it is finished or the time budget is used up.
+         *
+         * @return True if the traversal is finished, false if it was paused
+         */
+        boolean run(long budgetNs, MatchListener listener) {
+            long start = System.nanoTime();
+            int sinceCheck = 0;
+            try {
+                while (!stack.isEmpty()) {
+                    if (remaining == 0) {
+                        // Every rule has found all the views it can match on this screen
+                        cancel();
+                        break;
+                    }
+                    if (++sinceCheck >= TIME_CHECK_INTERVAL) {
+                        sinceCheck = 0;
+                        if (System.nanoTime() - start > budgetNs) return false;
+                    }
+
+                    Frame frame = stack.peek();
+                    if (!frame.entered) {
+                        if (!enter(frame, listener)) finish(listener);
+                        continue;
+                    }
+
+                    if (frame.order == null) frame.order = childOrder(frame);
+                    if (frame.nextChild < frame.order.length) {
+                        int index = frame.order[frame.nextChild++];
+                        AccessibilityNodeInfo child = frame.node.getChild(index);
+                        if (child != null) {
+                            HeatNode childHeat = frame.heat != null ? frame.heat.children.get(index) : null;
+                            Frame childFrame = new Frame(child, frame.outgoing, frame.hasOnly, index, childHeat);
+                            childFrame.fingerprint = frame.fingerprint;
+                            stack.push(childFrame);
+                        }
+                    } else {
+                        finish(listener);
+                    }
+                }
+                heat = newHeat;
+                return true;
+            } finally {
+                elapsedNs += System.nanoTime() - start;
+            }
+        }
+
+        /**
+         * Match the pending steps against the node of a frame, or replay the memoised outcome of its subtree.
+         *
+         * @return Whether the children of the node need to be visited
+         */
+        private boolean enter(Frame frame, MatchListener listener) {
+            frame.entered = true;
+            nodes++;
+            AccessibilityNodeInfo node = frame.node;
+            boolean visible = node.isVisibleToUser();
+            if (!frame.hasOnly && !visible) {
+                // Invisible views are never blocked, but may still satisfy a :has() of an ancestor
+                if (pendingHas == 0) return false;
+                frame.hasOnly = true;
+            }
+            properties.reset(node);
+            node.getBoundsInScreen(bounds);
+            frame.fingerprint = fingerprint(frame.fingerprint, node, visible);
+
+            MemoKey key = new MemoKey(frame.fingerprint, frame.pending, pendingHas > 0, frame.hasOnly);
+            if (dirty != null && !intersectsDirty()) {
+                MemoEntry entry = memo.get(key);
+                if (entry != null) {
+                    replay(frame, entry, listener);
+                    return false;
+                }
+            }
+            // Outcomes are only complete if no rule stopped looking for matches
+            if (satisfied.isEmpty()) frame.key = key;
+
+            if (pendingHas > 0) {
+                for (int h = 0; h < hasCompounds.size(); h++) {
+                    if (hasCompounds.get(h).matches(properties)) {
+                        frame.selfHas.set(h);
+                    }
+                }
+            }
+            if (frame.hasOnly) {
+                return pendingHas > 0;
+            }
+
+            BitSet outgoing = new BitSet(steps.size());
+            BitSet pending = frame.pending;
+            for (int p = pending.nextSetBit(0); p >= 0; p = pending.nextSetBit(p + 1)) {
+                Step step = steps.get(p);
+                if (satisfied.get(step.rule)) continue;
+                tests[step.rule]++;
+                if (step.combinator == Selector.DESCENDANT) {
+                    // Still looking for this step further down
+                    outgoing.set(p);
+                }
+                if (!step.compound.matches(properties)) continue;
+
+                if (step.next >= 0) {
+                    outgoing.set(step.next);
+                } else {
+                    if (frame.candidates == null) frame.candidates = new ArrayList<>();
+                    frame.candidates.add(p);
+                    if (step.has.length > 0 && !frame.waitsForHas) {
+                        frame.waitsForHas = true;
+                        pendingHas++;
+                    }
+                }
+            }
+            frame.outgoing = outgoing;
+            return !outgoing.isEmpty() || pendingHas > 0;
+        }
+
+        /**
+         * Resolve the candidates of the top frame and pass its :has() matches on to the parent.
+         */
+        private void finish(MatchListener listener) {
+            Frame frame = stack.pop();
+            try {
+                if (frame.candidates != null) {
+                    reported.clear();
+                    for (int p : frame.candidates) {
+                        Step step = steps.get(p);
+                        if (reported.get(step.rule) || satisfied.get(step.rule)
+                                || !hasAll(frame.descendantHas, step.has)) continue;
+                        reported.set(step.rule);
+                        Rect matchBounds = new Rect();
+                        frame.node.getBoundsInScreen(matchBounds);
+                        if (!matchBounds.isEmpty()) {
+                            deliver(frame, new Match(step.rule, matchBounds, ElementId.of(frame.node, indexPath(frame))),
+                                    listener);
+                        }
+                    }
+                }
+                if (frame.waitsForHas) pendingHas--;
+
+                if (frame.key != null && satisfied.isEmpty() && frame.subtreeNodes >= MIN_MEMO_NODES) {
+                    BitSet has = (BitSet) frame.descendantHas.clone();
+                    has.or(frame.selfHas);
+                    remember(frame.key, new MemoEntry(frame.collected, has, frame.subtreeNodes));
+                }
+
+                Frame parent = stack.peek();
+                if (parent != null) {
+                    parent.descendantHas.or(frame.descendantHas);
+                    parent.descendantHas.or(frame.selfHas);
+                    parent.subtreeNodes += frame.subtreeNodes;
+                    if (frame.collected != null) {
+                        if (parent.collected == null) parent.collected = new ArrayList<>();
+                        parent.collected.addAll(frame.collected);
+                    }
+                }
+            } finally {
+                frame.node.recycle();
+            }
+        }
+
+        /**
+         * Order in which to visit the children of a frame: those on paths to previous matches first,
+         * by the number of matches they led to, then all others in their natural order.
+         */
+        private int[] childOrder(Frame frame) {
+            int count = frame.node.getChildCount();
+            int[] order = new int[count];
+            if (frame.heat == null || frame.heat.children.isEmpty()) {
+                for (int i = 0; i < count; i++) order[i] = i;
+                return order;
+            }
+
+            List<Map.Entry<Integer, HeatNode>> hot = new ArrayList<>(frame.heat.children.entrySet());
+            hot.sort((a, b) -> Integer.compare(b.getValue().count, a.getValue().count));
+            BitSet taken = new BitSet(count);
+            int position = 0;
+            for (Map.Entry<Integer, HeatNode> entry : hot) {
+                int index = entry.getKey();
+                if (index < count) {
+                    order[position++] = index;
+                    taken.set(index);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                if (!taken.get(i)) order[position++] = i;
+            }
+            return order;
+        }
+
+        /**
+         * Report a match in the subtree of a frame, which has already been taken off the stack.
+         */
+        private void deliver(Frame frame, Match match, MatchListener listener) {
+            FilterRule rule = rules.get(match.rule);
+            listener.onMatch(rule, new Rect(match.bounds), match.id);
+            recordHeat(frame);
+            if (frame.collected == null) frame.collected = new ArrayList<>();
+            frame.collected.add(match);
+            if (++matches[match.rule] == rule.maxMatches) {
+                satisfied.set(match.rule);
+                remaining--;
+            }
+        }
+
+        /**
+         * Report the memoised matches of the subtree of a frame, as if it had been visited.
+         */
+        private void replay(Frame frame, MemoEntry entry, MatchListener listener) {
+            for (Match match : entry.matches) {
+                if (!satisfied.get(match.rule)) {
+                    deliver(frame, match, listener);
+                }
+            }
+            frame.descendantHas.or(entry.has);
+            frame.subtreeNodes = entry.nodes;
+            replayedNodes += entry.nodes - 1;
+        }
+
+        private long fingerprint(long parent, AccessibilityNodeInfo node, boolean visible) {
+            long hash = parent * 31 + Objects.hashCode(properties.getClassName());
+            hash = hash * 31 + Objects.hashCode(properties.getViewId());
+            hash = hash * 31 + node.getChildCount();
+            hash = hash * 31 + (visible ? 1 : 0);
+            hash = hash * 31 + bounds.left;
+            hash = hash * 31 + bounds.top;
+            hash = hash * 31 + bounds.right;
+            return hash * 31 + bounds.bottom;
+        }
+
+        private boolean intersectsDirty() {
+            for (Rect region : dirty) {
+                if (Rect.intersects(region, bounds)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Child index path from the root to a frame that has already been taken off the stack.
+         */
+        private String indexPath(Frame frame) {
+            StringBuilder path = new StringBuilder();
+            Iterator<Frame> frames = stack.descendingIterator();
+            while (frames.hasNext()) {
+                int index = frames.next().index;
+                if (index >= 0) path.append(index).append('/');
+            }
+            return path.append(frame.index).toString();
+        }
+
+        /**
+         * Remember the path from the root to a matched view, which may or may not still be on the stack.
+         */
+        private void recordHeat(Frame matched) {
+            HeatNode node = newHeat;
+            node.count++;
+            Iterator<Frame> frames = stack.descendingIterator();
+            while (frames.hasNext()) {
+                node = child(node, frames.next().index);
+            }
+            if (stack.peek() != matched) child(node, matched.index);
+        }
+
+        private HeatNode child(HeatNode node, int index) {
+            // The root has no index
+            if (index < 0) return node;
+            HeatNode child = node.children.computeIfAbsent(index, k -> new HeatNode());
+            child.count++;
+            return child;
+        }
+
+        private boolean hasAll(BitSet matched, int[] required) {
+            for (int h : required) {
+                if (!matched.get(h)) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Abort the traversal and release all nodes that are still held.
+         */
+        void cancel() {
+            while (!stack.isEmpty()) {
+                stack.pop().node.recycle();
+            }
+        }
+
+        /**
+         * Number of nodes on which the selectors of a rule were tested.
+         */
+        int getTests(FilterRule rule) {
+            Integer index = ruleIndices.get(rule);
+            return index != null ? tests[index] : 0;
+        }
+
+        long getTotalTests() {
+            long total = 0;
+            for (int count : tests) total += count;
+            return total;
+        }
+
+        int getMatches(FilterRule rule) {
+            Integer index = ruleIndices.get(rule);
+            return index != null ? matches[index] : 0;
+        }
+
+        int getNodes() {
+            return nodes;
+        }
+
+        /**
+         * Number of nodes whose outcome was replayed from the memo instead of being visited.
+         */
+        int getReplayedNodes() {
+            return replayedNodes;
+        }
+
+        /**
+         * The regions this scan considered changed, or null if it considered the whole screen changed.
+         */
+        List<Rect> getDirtyRegions() {
+            return dirty;
+        }
+
+        long getElapsedNs() {
+            return elapsedNs;
+        }
+    }
+
+    private static class Step {
+        final Selector.Compound compound;
+        final int combinator;
+        final int next; // Index of the following step, -1 for the subject
+        final int rule;
+        final int[] has;
+
+        Step(Selector.Compound compound, int combinator, int next, int rule, int[] has) {
+            this.compound = compound;
+            this.combinator = combinator;
+            this.next = next;
+            this.rule = rule;
+            this.has = has;
+        }
+    }
+
+    /**
+     * A node of the trie of child index paths that led to matches.
+     */
+    private static class HeatNode {
+        final Map<Integer, HeatNode> children = new HashMap<>();
+        int count;
+    }
+
+    private static class Match {
+        final int rule;
+        final Rect bounds;
+        final ElementId id;
+
+        Match(int rule, Rect bounds, ElementId id) {
+            this.rule = rule;
+            this.bounds = bounds;
+            this.id = id;
+        }
+    }
+
+    /**
+     * A subtree as seen by the automaton: its fingerprint and the state in which it was entered.
+     */
+    private static class MemoKey {
+        final long fingerprint;
+        final BitSet pending;
+        final boolean hasPending;
+        final boolean hasOnly;
+
+        MemoKey(long fingerprint, BitSet pending, boolean hasPending, boolean hasOnly) {
+            this.fingerprint = fingerprint;
+            this.pending = pending;
+            this.hasPending = hasPending;
+            this.hasOnly = hasOnly;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof MemoKey)) return false;
+            MemoKey that = (MemoKey) o;
+            return fingerprint == that.fingerprint && hasPending == that.hasPending
+                    && hasOnly == that.hasOnly && pending.equals(that.pending);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fingerprint, pending, hasPending, hasOnly);
+        }
+    }
+
+    private static class MemoEntry {
+        final List<Match> matches;
+        final BitSet has; // :has() compounds matched anywhere in the subtree
+        final int nodes;
+
+        MemoEntry(List<Match> matches, BitSet has, int nodes) {
+            this.matches = matches != null ? new ArrayList<>(matches) : new ArrayList<>();
+            this.has = has;
+            this.nodes = nodes;
+        }
+
+        int cost() {
+            return 1 + matches.size();
+        }
+    }
+
+    private static class Frame {
+        final AccessibilityNodeInfo node;
+        final BitSet pending;
+        final int index; // Child index within the parent, -1 for the root
+        final HeatNode heat; // Heat of this node in the last scan, null if nothing matched below it
+        int[] order;
+        final BitSet selfHas = new BitSet();
+        final BitSet descendantHas = new BitSet();
+        BitSet outgoing = new BitSet();
+        List<Integer> candidates;
+        int nextChild;
+        boolean entered;
+        boolean hasOnly;
+        boolean waitsForHas;
+        long fingerprint; // Of the parent until the frame is entered
+        MemoKey key; // Null if the outcome of the subtree is not to be memoised
+        List<Match> collected; // Matches in the subtree
+        int subtreeNodes = 1;
+
+        Frame(AccessibilityNodeInfo node, BitSet pending, boolean hasOnly, int index, HeatNode heat) {
+            this.node = node;
+            this.pending = pending;
+            this.hasOnly = hasOnly;
+            this.index = index;
+            this.heat = heat;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package net.kollnig.greasemilkyway;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Parser for the CSS-like selector dialect, e.g.
+ * <pre>FrameLayout#feed_item > [desc="Shorts"], #watch_list > :has([text="Sponsored"])</pre>
+ * Supported are class names, #view-ids, [id=...], [desc=...] and [text=...] attributes,
+ * descendant and child (>) combinators, :has(...) on the last compound, and comma-separated lists.
+ * Descriptions and texts can also be matched by prefix (^=), suffix ($=), substring (*=) or
+ * regular expression (~=).
+ */
+class SelectorParser {
+    private final String input;
+    private int pos;
+
+    private SelectorParser(String input) {
+        this.input = input;
+    }
+
+    /**
+     * Parses a comma-separated list of selectors.
+     *
+     * @throws IllegalArgumentException if the selector is malformed
+     */
+    static List<Selector> parse(String input) {
+        SelectorParser parser = new SelectorParser(input);
+        List<Selector> selectors = new ArrayList<>();
+        do {
+            selectors.add(parser.parseComplex());
+            parser.skipWhitespace();
+        } while (parser.consume(','));
+        if (!parser.atEnd()) {
+            throw parser.error("Unexpected character");
+        }
+        return selectors;
+    }
+
+    /**
+     * Compiles a rule in the classic viewId/desc/text syntax into the same representation.
+     * With a view ID only, the view itself is blocked; with descriptions or texts only, views with
+     * a matching description or text are blocked; with both, the children of the view that have a
+     * matching description or text themselves or in their subtree are blocked.
+     */
+    static List<Selector> fromLegacy(String viewId, List<TextPattern> descriptions, List<TextPattern> texts) {
+        boolean hasViewId = viewId != null && !viewId.isEmpty();
+        List<Selector.Predicate> contents = new ArrayList<>();
+        if (descriptions != null && !descriptions.isEmpty()) {
+            contents.add(new Selector.Predicate(Selector.Predicate.DESC, descriptions));
+        }
+        if (texts != null && !texts.isEmpty()) {
+            contents.add(new Selector.Predicate(Selector.Predicate.TEXT, texts));
+        }
+
+        List<Selector> selectors = new ArrayList<>();
+        if (contents.isEmpty()) {
+            if (hasViewId) {
+                selectors.add(single(compound(null, predicate(Selector.Predicate.ID, viewId))));
+            }
+            return selectors;
+        }
+
+        for (Selector.Predicate content : contents) {
+            if (!hasViewId) {
+                selectors.add(single(compound(null, content)));
+                continue;
+            }
+            Selector.Compound anchor = compound(null, predicate(Selector.Predicate.ID, viewId));
+            Selector.Compound self = compound(null, content);
+            Selector.Compound descendant = new Selector.Compound(null, Collections.emptyList(),
+                    Collections.singletonList(compound(null, content)));
+            selectors.add(new Selector(listOf(anchor, self), listOf(Selector.DESCENDANT, Selector.CHILD)));
+            selectors.add(new Selector(listOf(anchor, descendant), listOf(Selector.DESCENDANT, Selector.CHILD)));
+        }
+        return selectors;
+    }
+
+    private Selector parseComplex() {
+        List<Selector.Compound> compounds = new ArrayList<>();
+        List<Integer> combinators = new ArrayList<>();
+        skipWhitespace();
+        compounds.add(parseCompound());
+        combinators.add(Selector.DESCENDANT);
+
+        while (true) {
+            boolean whitespace = skipWhitespace();
+            if (consume('>')) {
+                skipWhitespace();
+                combinators.add(Selector.CHILD);
+            } else if (whitespace && !atEnd() && peek() != ',' && peek() != ')') {
+                combinators.add(Selector.DESCENDANT);
+            } else {
+                break;
+            }
+            compounds.add(parseCompound());
+        }
+
+        for (int i = 0; i < compounds.size() - 1; i++) {
+            if (!compounds.get(i).has.isEmpty()) {
+                throw error(":has() is only supported on the last compound");
+            }
+        }
+        return new Selector(compounds, combinators);
+    }
+
+    private Selector.Compound parseCompound() {
+        int start = pos;
+        String className = null;
+        if (consume('*')) {
+            // Universal selector, matches any class
+        } else if (!atEnd() && isNameChar(peek())) {
+            className = readWhile(SelectorParser::isNameChar);
+        }
+
+        List<Selector.Predicate> predicates = new ArrayList<>();
+        List<Selector.Compound> has = new ArrayList<>();
+        while (!atEnd()) {
+            if (consume('#')) {
+                String viewId = readViewId();
+                if (viewId.isEmpty()) throw error("Expected view ID");
+                predicates.add(predicate(Selector.Predicate.ID, viewId));
+            } else if (consume('[')) {
+                predicates.add(parseAttribute());
+            } else if (input.startsWith(":has(", pos)) {
+                pos += ":has(".length();
+                skipWhitespace();
+                Selector.Compound inner = parseCompound();
+                if (!inner.has.isEmpty()) throw error("Nested :has() is not supported");
+                has.add(inner);
+                skipWhitespace();
+                expect(')');
+            } else {
+                break;
+            }
+        }
+
+        if (pos == start) throw error("Expected selector");
+        return new Selector.Compound(className, predicates, has);
+    }
+
+    private Selector.Predicate parseAttribute() {
+        skipWhitespace();
+        String name = readWhile(Character::isLetter);
+        int attribute;
+        switch (name) {
+            case "id":
+                attribute = Selector.Predicate.ID;
+                break;
+            case "desc":
+                attribute = Selector.Predicate.DESC;
+                break;
+            case "text":
+                attribute = Selector.Predicate.TEXT;
+                break;
+            default:
+                throw error("Unknown attribute '" + name + "'");
+        }
+        skipWhitespace();
+        int mode = TextPattern.EXACT;
+        if (consume('^')) {
+            mode = TextPattern.PREFIX;
+        } else if (consume('$')) {
+            mode = TextPattern.SUFFIX;
+        } else if (consume('*')) {
+            mode = TextPattern.CONTAINS;
+        } else if (consume('~')) {
+            mode = TextPattern.REGEX;
+        }
+        expect('=');
+        if (attribute == Selector.Predicate.ID && mode != TextPattern.EXACT) {
+            throw error("View IDs can only be matched exactly");
+        }
+        skipWhitespace();
+        String value = parseValue();
+        skipWhitespace();
+        expect(']');
+        if (attribute == Selector.Predicate.ID) return predicate(attribute, value);
+
+        TextPattern pattern;
+        try {
+            pattern = new TextPattern(mode, value);
+        } catch (PatternSyntaxException e) {
+            throw error("Invalid regular expression '" + value + "'");
+        }
+        return new Selector.Predicate(attribute, Collections.singletonList(pattern));
+    }
+
+    private String parseValue() {
+        if (atEnd()) throw error("Expected value");
+        char quote = peek();
+        if (quote == '"' || quote == '\'') {
+            pos++;
+            int end = input.indexOf(quote, pos);
+            if (end < 0) throw error("Unterminated string");
+            String value = input.substring(pos, end);
+            pos = end + 1;
+            return value;
+        }
+        return readWhile(c -> c != ']' && !Character.isWhitespace(c));
+    }
+
+    private static Selector.Predicate predicate(int attribute, String value) {
+        Set<String> values = new HashSet<>();
+        values.add(value);
+        return new Selector.Predicate(attribute, values);
+    }
+
+    private static Selector.Compound compound(String className, Selector.Predicate predicate) {
+        return new Selector.Compound(className, Collections.singletonList(predicate), Collections.emptyList());
+    }
+
+    private static Selector single(Selector.Compound compound) {
+        return new Selector(Collections.singletonList(compound), Collections.singletonList(Selector.DESCENDANT));
+    }
+
+    @SafeVarargs
+    private static <T> List<T> listOf(T... items) {
+        List<T> list = new ArrayList<>();
+        Collections.addAll(list, items);
+        return list;
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '$';
+    }
+
+    /**
+     * Read a plain or fully qualified view ID. A colon only belongs to the ID where it begins
+     * ":id/", so that e.g. #feed_item:has(...) ends before the pseudo-class.
+     */
+    private String readViewId() {
+        int start = pos;
+        readWhile(SelectorParser::isViewIdChar);
+        if (pos > start && input.startsWith(":id/", pos)) {
+            pos += ":id/".length();
+            readWhile(SelectorParser::isViewIdChar);
+        }
+        return input.substring(start, pos);
+    }
+
+    private static boolean isViewIdChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+    }
+
+    private boolean skipWhitespace() {
+        int start = pos;
+        while (!atEnd() && Character.isWhitespace(peek())) pos++;
+        return pos > start;
+    }
+
+    private String readWhile(CharPredicate predicate) {
+        int start = pos;
+        while (!atEnd() && predicate.test(peek())) pos++;
+        return input.substring(start, pos);
+    }
+
+    private boolean consume(char c) {
+        if (!atEnd() && peek() == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if (!consume(c)) throw error("Expected '" + c + "'");
+    }
+
+    private char peek() {
+        return input.charAt(pos);
+    }
+
+    private boolean atEnd() {
+        return pos >= input.length();
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos + " in selector: " + input);
+    }
+
+    private interface CharPredicate {
+        boolean test(char c);
+    }
+}
@@ -19,7 +19,9 @@ public class ServiceConfig {
     public static final String KEY_RULE_ENABLED = "rule_enabled_";
     private static final String KEY_CUSTOM_RULES = "custom_rules";
     private static final String KEY_PACKAGE_DISABLED = "package_disabled_";
+    private static final String KEY_MAX_OVERLAYS = "max_overlays";
     private static final String DEFAULT_RULES_FILE = "distraction_rules.txt";
+    public static final int DEFAULT_MAX_OVERLAYS = 100; // Prevent memory issues
 
     private final SharedPreferences prefs;
     private final FilterRuleParser ruleParser;
@@ -51,6 +53,50 @@ public class ServiceConfig {
     }
 
     public List<FilterRule> getRules() {
+        List<FilterRule> rules = getDefaultRules();
+        
+        // Add custom rules
+        String[] customRules = getCustomRules();
+        if (customRules != null) {
+            rules.addAll(ruleParser.parseRules(customRules));
+        }
+
+        // Apply saved enabled states
+        for (FilterRule rule : rules) {
+            applyEnabledState(rule);
+        }
+
+        return rules;
+    }
+
+    /**
+     * Get the rules as they would be with other custom rules, which are enabled so that they can be
+     * tested, unless their app is switched off. See {@link #promoteCandidateRules(String[])}.
+     */
+    List<FilterRule> getCandidateRules(String[] customRules) {
+        List<FilterRule> rules = getDefaultRules();
+        for (FilterRule rule : rules) {
+            applyEnabledState(rule);
+        }
+        for (FilterRule rule : ruleParser.parseRules(customRules)) {
+            rule.enabled = rule.packageName == null || !isPackageDisabled(rule.packageName);
+            rules.add(rule);
+        }
+        return rules;
+    }
+
+    /**
+     * Save tested custom rules, enabled as they were tested, so that {@link #getRules()} returns
+     * the tested rules. The switches of the apps are left alone.
+     */
+    void promoteCandidateRules(String[] customRules) {
+        saveCustomRules(customRules);
+        for (FilterRule rule : ruleParser.parseRules(customRules)) {
+            setRuleEnabled(rule, true);
+        }
+    }
+
+    private List<FilterRule> getDefaultRules() {
         List<FilterRule> rules = new ArrayList<>();
         
         // Add default rules from file
@@ -67,27 +113,31 @@ public class ServiceConfig {
         } catch (IOException e) {
             e.printStackTrace();
         }
-        
-        // Add custom rules
-        String[] customRules = getCustomRules();
-        if (customRules != null) {
-            rules.addAll(ruleParser.parseRules(customRules));
-        }
+        return rules;
+    }
 
-        // Apply saved enabled states
-        for (FilterRule rule : rules) {
-            String key = KEY_RULE_ENABLED + rule.hashCode();
-            // Default all rules to disabled (opt-in system)
-            boolean ruleEnabled = prefs.getBoolean(key, false);
-            // If the package is disabled, force disable all rules for that package
-            if (rule.packageName != null && isPackageDisabled(rule.packageName)) {
-                rule.enabled = false;
-            } else {
-                rule.enabled = ruleEnabled;
-            }
+    private void applyEnabledState(FilterRule rule) {
+        String key = KEY_RULE_ENABLED + rule.hashCode();
+        // Default all rules to disabled (opt-in system)
+        boolean ruleEnabled = prefs.getBoolean(key, false);
+        // If the package is disabled, force disable all rules for that package
+        if (rule.packageName != null && isPackageDisabled(rule.packageName)) {
+            rule.enabled = false;
+        } else {
+            rule.enabled = ruleEnabled;
         }
+    }
 
-        return rules;
+    /**
+     * Get the maximum number of overlays shown at once. Beyond it, the overlays least likely
+     * to be needed are removed to make room.
+     */
+    public int getMaxOverlays() {
+        return Math.max(1, prefs.getInt(KEY_MAX_OVERLAYS, DEFAULT_MAX_OVERLAYS));
+    }
+
+    public void setMaxOverlays(int maxOverlays) {
+        prefs.edit().putInt(KEY_MAX_OVERLAYS, maxOverlays).apply();
     }
 
     public String[] getCustomRules() {
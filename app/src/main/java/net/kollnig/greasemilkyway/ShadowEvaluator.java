@@ -0,0 +1,274 @@
+package net.kollnig.greasemilkyway;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates a candidate rule set alongside the rules in force, on the same view trees, without
+ * creating overlays. Both sets are evaluated from scratch with full traversals, so that their cost
+ * can be compared. The report lists the elements only one of them blocks and the cost of each.
+ * <p>
+ * Like a live scan, an evaluation is time-sliced across frames. The service only runs it while no
+ * live scan is in progress. The set that goes first warms the node cache for the other, so the
+ * order alternates between evaluations.
+ */
+class ShadowEvaluator {
+    private static final String TAG = "ShadowEvaluator";
+    // Between evaluations, since evaluating both sets in full is costly
+    private static final long MIN_INTERVAL_MS = 1000;
+    private static final int MAX_DIFFERENCES = 50; // Listed per direction
+
+    // Custom rules as entered in the editor, which are saved when the candidate is promoted
+    final String[] customRules;
+    private RuleSnapshot candidate;
+    private final Report report = new Report();
+    private long lastEvaluationMs;
+    private boolean candidateFirst;
+    // Evaluation in progress, null if there is none
+    private String evaluationPackage;
+    private Side current;
+    private Side shadow;
+
+    ShadowEvaluator(String[] customRules, RuleSnapshot candidate) {
+        this.customRules = customRules;
+        this.candidate = candidate;
+    }
+
+    RuleSnapshot getCandidate() {
+        return candidate;
+    }
+
+    /**
+     * Replace the candidate rules with the same custom rules, e.g. after rules were toggled in the
+     * settings during the test. The report so far is kept.
+     */
+    void setCandidate(RuleSnapshot candidate) {
+        this.candidate = candidate;
+    }
+
+    /**
+     * Start evaluating both rule sets on a view tree, unless the last evaluation was too recent.
+     * An evaluation still in progress is abandoned, since its tree is out of date.
+     * Path rules are applied right away; the selectors are matched by {@link #run(long)}.
+     *
+     * @return Whether an evaluation was started
+     */
+    boolean start(AccessibilityNodeInfo root, String packageName, String activity, RuleSnapshot active, long nowMs) {
+        cancel();
+        if (nowMs - lastEvaluationMs < MIN_INTERVAL_MS) return false;
+        if (!active.index.hasRules(packageName) && !candidate.index.hasRules(packageName)) return false;
+
+        Rect viewport = new Rect();
+        root.getBoundsInScreen(viewport);
+        evaluationPackage = packageName;
+        current = new Side(active, packageName, activity, viewport);
+        shadow = new Side(candidate, packageName, activity, viewport);
+        candidateFirst = !candidateFirst;
+        if (candidateFirst) {
+            shadow.start(root);
+            current.start(root);
+        } else {
+            current.start(root);
+            shadow.start(root);
+        }
+        return true;
+    }
+
+    boolean isRunning() {
+        return current != null;
+    }
+
+    /**
+     * Continue the evaluation in progress until it is finished or the time budget is used up.
+     *
+     * @return True if the evaluation is finished, false if it was paused
+     */
+    boolean run(long budgetNs) {
+        if (current == null) return true;
+        long deadline = System.nanoTime() + budgetNs;
+        Side first = candidateFirst ? shadow : current;
+        Side second = candidateFirst ? current : shadow;
+        if (!first.run(deadline) || !second.run(deadline)) return false;
+
+        lastEvaluationMs = SystemClock.uptimeMillis();
+        report.evaluations++;
+        report.activeNodes += current.result.nodes;
+        report.activeNs += current.result.elapsedNs;
+        report.candidateNodes += shadow.result.nodes;
+        report.candidateNs += shadow.result.elapsedNs;
+        diff(current.result.matches, shadow.result.matches, evaluationPackage, report.onlyActive);
+        diff(shadow.result.matches, current.result.matches, evaluationPackage, report.onlyCandidate);
+        Log.d(TAG, "Evaluated " + evaluationPackage + ": " + current.result.nodes + " vs " + shadow.result.nodes
+                + " node(s), " + current.result.elapsedNs / 1000 + " vs " + shadow.result.elapsedNs / 1000 + " us");
+        current = null;
+        shadow = null;
+        return true;
+    }
+
+    /**
+     * Abandon the evaluation in progress, if any.
+     */
+    void cancel() {
+        if (current == null) return;
+        current.cancel();
+        shadow.cancel();
+        current = null;
+        shadow = null;
+    }
+
+    /**
+     * Get a copy of the report so far.
+     */
+    Report getReport() {
+        return new Report(report);
+    }
+
+    private static void diff(Map<String, FilterRule> matches, Map<String, FilterRule> others,
+                             String packageName, Set<String> differences) {
+        for (Map.Entry<String, FilterRule> match : matches.entrySet()) {
+            if (differences.size() >= MAX_DIFFERENCES) return;
+            if (others.containsKey(match.getKey())) continue;
+            FilterRule rule = match.getValue();
+            String name = rule.description != null && !rule.description.isEmpty() ? rule.description : rule.ruleString;
+            differences.add(packageName + ": " + name + " " + match.getKey());
+        }
+    }
+
+    /**
+     * The evaluation of one rule set on one view tree.
+     */
+    private static class Side {
+        final RuleSnapshot snapshot;
+        final String packageName;
+        final String activity;
+        final Rect viewport;
+        final Result result = new Result();
+        final List<FilterRule> rules;
+        final Set<FilterRule> active;
+        SelectorAutomaton.Scan scan;
+
+        Side(RuleSnapshot snapshot, String packageName, String activity, Rect viewport) {
+            this.snapshot = snapshot;
+            this.packageName = packageName;
+            this.activity = activity;
+            this.viewport = viewport;
+            this.rules = snapshot.index.rulesFor(packageName, activity);
+            this.active = new HashSet<>(rules);
+        }
+
+        /**
+         * Apply the path rules and set up the selector traversal, which keeps its own copy of the root.
+         */
+        void start(AccessibilityNodeInfo root) {
+            if (rules.isEmpty()) return;
+            long start = System.nanoTime();
+
+            // Path rules, grouped by their tries as in a live scan
+            Set<PathTrie> tries = new HashSet<>();
+            PathTrie.MatchListener pathListener = (rule, node) -> {
+                Rect bounds = new Rect();
+                node.getBoundsInScreen(bounds);
+                result.add(rule, bounds, viewport);
+            };
+            for (FilterRule rule : rules) {
+                if (rule.path == null) continue;
+                PathTrie trie = snapshot.index.pathTrie(rule);
+                if (trie == null || !tries.add(trie)) continue;
+                if (rule.targetViewId == null || rule.targetViewId.isEmpty()) {
+                    result.nodes += trie.apply(root, active, pathListener);
+                    continue;
+                }
+                List<AccessibilityNodeInfo> anchors = root.findAccessibilityNodeInfosByViewId(rule.targetViewId);
+                if (anchors == null) continue;
+                for (AccessibilityNodeInfo anchor : anchors) {
+                    try {
+                        result.nodes += trie.apply(anchor, active, pathListener);
+                    } finally {
+                        anchor.recycle();
+                    }
+                }
+            }
+
+            // Selectors with a fresh automaton, so that no memo of earlier scans makes one set look cheaper
+            scan = snapshot.index.newAutomaton(packageName, activity).newScan(root, active, null);
+            result.elapsedNs = System.nanoTime() - start;
+        }
+
+        /**
+         * @return True if the traversal is finished, false if it ran out of time
+         */
+        boolean run(long deadlineNs) {
+            if (scan == null) return true;
+            long remainingNs = deadlineNs - System.nanoTime();
+            if (remainingNs <= 0) return false;
+            if (!scan.run(remainingNs, (rule, bounds, id) -> result.add(rule, new Rect(bounds), viewport))) {
+                return false;
+            }
+            result.nodes += scan.getNodes();
+            result.elapsedNs += scan.getElapsedNs();
+            scan = null;
+            return true;
+        }
+
+        void cancel() {
+            if (scan != null) {
+                scan.cancel();
+                scan = null;
+            }
+        }
+    }
+
+    /**
+     * Elements one rule set blocks on one view tree, and what it took to find them.
+     */
+    private static class Result {
+        // Rule by the visible bounds of the element it blocks
+        final Map<String, FilterRule> matches = new LinkedHashMap<>();
+        int nodes;
+        long elapsedNs;
+
+        void add(FilterRule rule, Rect bounds, Rect viewport) {
+            if (bounds.isEmpty() || !bounds.intersect(viewport)) return;
+            String key = bounds.toShortString();
+            if (!matches.containsKey(key)) matches.put(key, rule);
+        }
+    }
+
+    /**
+     * Totals over all evaluations so far.
+     */
+    static class Report {
+        int evaluations;
+        long activeNodes;
+        long activeNs;
+        long candidateNodes;
+        long candidateNs;
+        // Elements blocked by only one of the rule sets
+        final Set<String> onlyActive;
+        final Set<String> onlyCandidate;
+
+        Report() {
+            onlyActive = new LinkedHashSet<>();
+            onlyCandidate = new LinkedHashSet<>();
+        }
+
+        Report(Report other) {
+            evaluations = other.evaluations;
+            activeNodes = other.activeNodes;
+            activeNs = other.activeNs;
+            candidateNodes = other.candidateNodes;
+            candidateNs = other.candidateNs;
+            onlyActive = new LinkedHashSet<>(other.onlyActive);
+            onlyCandidate = new LinkedHashSet<>(other.onlyCandidate);
+        }
+    }
+}
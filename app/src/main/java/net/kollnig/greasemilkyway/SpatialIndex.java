@@ -0,0 +1,104 @@
+package net.kollnig.greasemilkyway;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of items with screen bounds, in a grid of horizontal bands. An item is listed in every band
+ * it overlaps, so a region query only looks at the items in the bands the region spans instead of
+ * at all items.
+ */
+class SpatialIndex<T> {
+    private static final int BAND_HEIGHT = 128; // Pixels
+
+    private final Map<T, Rect> bounds = new HashMap<>();
+    private final Map<Integer, Set<T>> bands = new HashMap<>();
+
+    /**
+     * Add an item, or move it if it is already indexed.
+     */
+    void put(T item, Rect rect) {
+        remove(item);
+        Rect copy = new Rect(rect);
+        bounds.put(item, copy);
+        for (int band = firstBand(copy); band <= lastBand(copy); band++) {
+            bands.computeIfAbsent(band, k -> new LinkedHashSet<>()).add(item);
+        }
+    }
+
+    void remove(T item) {
+        Rect rect = bounds.remove(item);
+        if (rect == null) return;
+        for (int band = firstBand(rect); band <= lastBand(rect); band++) {
+            Set<T> items = bands.get(band);
+            if (items == null) continue;
+            items.remove(item);
+            if (items.isEmpty()) bands.remove(band);
+        }
+    }
+
+    void clear() {
+        bounds.clear();
+        bands.clear();
+    }
+
+    Rect get(T item) {
+        return bounds.get(item);
+    }
+
+    int size() {
+        return bounds.size();
+    }
+
+    Collection<T> items() {
+        return bounds.keySet();
+    }
+
+    /**
+     * Get all items that intersect a region.
+     */
+    List<T> query(Rect region) {
+        List<T> found = new ArrayList<>();
+        Set<T> seen = new LinkedHashSet<>();
+        for (int band = firstBand(region); band <= lastBand(region); band++) {
+            Set<T> items = bands.get(band);
+            if (items == null) continue;
+            for (T item : items) {
+                if (seen.add(item) && Rect.intersects(bounds.get(item), region)) {
+                    found.add(item);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Get all items whose bounds fully contain a rectangle.
+     */
+    List<T> queryContaining(Rect rect) {
+        List<T> found = new ArrayList<>();
+        // Containing items overlap the band of the top edge
+        Set<T> items = bands.get(Math.floorDiv(rect.top, BAND_HEIGHT));
+        if (items == null) return found;
+        for (T item : items) {
+            if (bounds.get(item).contains(rect)) found.add(item);
+        }
+        return found;
+    }
+
+    private static int firstBand(Rect rect) {
+        return Math.floorDiv(rect.top, BAND_HEIGHT);
+    }
+
+    private static int lastBand(Rect rect) {
+        // Rect bottoms are exclusive
+        return Math.floorDiv(Math.max(rect.top, rect.bottom - 1), BAND_HEIGHT);
+    }
+}
@@ -0,0 +1,82 @@
+package net.kollnig.greasemilkyway;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.util.Log;
+import android.view.inputmethod.InputMethodInfo;
+import android.view.inputmethod.InputMethodManager;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Knows which packages belong to the system UI rather than to apps: home screens, which also show
+ * the recent apps on most devices, the system UI with the lock screen, keyboards and this app.
+ * The packages are resolved once and again after a package change, so that window state changes
+ * can be classified without calls to the package manager.
+ */
+class SystemPackageClassifier {
+    private static final String TAG = "SystemPackageClassifier";
+    static final int APP = 0;
+    static final int LAUNCHER = 1;
+    static final int SYSTEM_UI = 2;
+    static final int KEYBOARD = 3;
+    static final int SELF = 4;
+
+    private static final String SYSTEM_UI_PACKAGE = "com.android.systemui";
+
+    private final Context context;
+    private volatile Map<String, Integer> packages = new HashMap<>();
+
+    SystemPackageClassifier(Context context) {
+        this.context = context;
+        refresh();
+    }
+
+    /**
+     * Resolve the system packages again, e.g. after a package was installed, removed or changed.
+     */
+    void refresh() {
+        Map<String, Integer> resolved = new HashMap<>();
+        PackageManager packageManager = context.getPackageManager();
+
+        // All installed home screens, so that switching the default one needs no refresh
+        Intent home = new Intent(Intent.ACTION_MAIN);
+        home.addCategory(Intent.CATEGORY_HOME);
+        List<ResolveInfo> launchers = packageManager.queryIntentActivities(home, 0);
+        if (launchers != null) {
+            for (ResolveInfo launcher : launchers) {
+                resolved.put(launcher.activityInfo.packageName, LAUNCHER);
+            }
+        }
+        ResolveInfo defaultHome = packageManager.resolveActivity(home, PackageManager.MATCH_DEFAULT_ONLY);
+        if (defaultHome != null && defaultHome.activityInfo != null) {
+            resolved.put(defaultHome.activityInfo.packageName, LAUNCHER);
+        }
+
+        InputMethodManager inputMethodManager =
+                (InputMethodManager) context.getSystemService(Context.INPUT_METHOD_SERVICE);
+        if (inputMethodManager != null) {
+            for (InputMethodInfo inputMethod : inputMethodManager.getEnabledInputMethodList()) {
+                resolved.put(inputMethod.getPackageName(), KEYBOARD);
+            }
+        }
+
+        // The system UI and this app take precedence, e.g. over a launcher in the system UI package
+        resolved.put(SYSTEM_UI_PACKAGE, SYSTEM_UI);
+        resolved.put(context.getPackageName(), SELF);
+        packages = resolved;
+        Log.d(TAG, "System packages: " + resolved);
+    }
+
+    /**
+     * Get the kind of a package, {@link #APP} unless it belongs to the system UI.
+     */
+    int classify(String packageName) {
+        Integer kind = packages.get(packageName);
+        return kind != null ? kind : APP;
+    }
+}
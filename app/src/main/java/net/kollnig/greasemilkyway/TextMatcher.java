@@ -0,0 +1,208 @@
+package net.kollnig.greasemilkyway;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Matches a string against many {@link TextPattern}s at once.
+ * <p>
+ * All literal patterns (exact, prefix, suffix and substring) are compiled into one Aho-Corasick
+ * automaton, so a string is scanned once no matter how many patterns there are; the mode of a
+ * pattern only decides where its occurrences may start and end. Regular expressions are joined
+ * into a single alternation that rules out most strings in one pass, only strings that pass it
+ * are tested against the expressions one by one. Expressions with groups are left out of the
+ * alternation, since joining them would renumber their groups and break backreferences, and are
+ * always tested on their own.
+ */
+class TextMatcher {
+    private final Map<TextPattern, Integer> ids = new HashMap<>();
+    private final List<TextPattern> patterns = new ArrayList<>();
+
+    // Automaton over the literal patterns, state 0 is the root
+    private final List<Map<Character, Integer>> transitions = new ArrayList<>();
+    private final List<int[]> outputs = new ArrayList<>();
+    private int[] failure;
+
+    // Expressions in the combined alternation, and those matched on their own
+    private final List<Integer> regexIds = new ArrayList<>();
+    private final List<Integer> separateRegexIds = new ArrayList<>();
+    private Pattern combinedRegex;
+
+    TextMatcher(Collection<TextPattern> patterns) {
+        newState();
+        for (TextPattern pattern : patterns) {
+            if (ids.containsKey(pattern)) continue;
+            int id = this.patterns.size();
+            ids.put(pattern, id);
+            this.patterns.add(pattern);
+            if (pattern.mode == TextPattern.REGEX) {
+                (hasGroups(pattern.value) ? separateRegexIds : regexIds).add(id);
+            } else {
+                addLiteral(pattern.value, id);
+            }
+        }
+        buildFailureLinks();
+
+        if (!regexIds.isEmpty()) {
+            StringBuilder combined = new StringBuilder();
+            for (int id : regexIds) {
+                if (combined.length() > 0) combined.append('|');
+                combined.append("(?:").append(this.patterns.get(id).value).append(')');
+            }
+            combinedRegex = Pattern.compile(combined.toString());
+        }
+    }
+
+    /**
+     * Whether a regular expression has capturing groups or backreferences. Lookarounds and other
+     * non-capturing constructs are fine, as are escaped or bracketed parentheses.
+     */
+    private static boolean hasGroups(String regex) {
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < regex.length()) {
+                    char next = regex.charAt(i + 1);
+                    if (!inClass && (Character.isDigit(next) || next == 'k')) return true;
+                    if (next == 'Q') {
+                        // Quoted up to \E
+                        int end = regex.indexOf("\\E", i + 2);
+                        if (end < 0) return false;
+                        i = end + 1;
+                        continue;
+                    }
+                }
+                i++;
+            } else if (inClass) {
+                if (c == ']') inClass = false;
+            } else if (c == '[') {
+                inClass = true;
+                // A leading ] or ^] is part of the class
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') i++;
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') i++;
+            } else if (c == '(') {
+                if (!regex.startsWith("?", i + 1)) return true;
+                // Named group, unlike the lookbehinds (?<= and (?<!
+                if (regex.startsWith("?<", i + 1) && i + 3 < regex.length()
+                        && Character.isLetter(regex.charAt(i + 3))) return true;
+            }
+        }
+        return false;
+    }
+
+    private int newState() {
+        transitions.add(new HashMap<>());
+        outputs.add(new int[0]);
+        return transitions.size() - 1;
+    }
+
+    private void addLiteral(String value, int id) {
+        int state = 0;
+        for (int i = 0; i < value.length(); i++) {
+            Integer next = transitions.get(state).get(value.charAt(i));
+            if (next == null) {
+                next = newState();
+                transitions.get(state).put(value.charAt(i), next);
+            }
+            state = next;
+        }
+        outputs.set(state, append(outputs.get(state), id));
+    }
+
+    private void buildFailureLinks() {
+        failure = new int[transitions.size()];
+        ArrayDeque<Integer> queue = new ArrayDeque<>(transitions.get(0).values());
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (Map.Entry<Character, Integer> entry : transitions.get(state).entrySet()) {
+                int child = entry.getValue();
+                queue.add(child);
+                if (state == 0) continue;
+                int fallback = failure[state];
+                while (fallback != 0 && !transitions.get(fallback).containsKey(entry.getKey())) {
+                    fallback = failure[fallback];
+                }
+                Integer target = transitions.get(fallback).get(entry.getKey());
+                failure[child] = target != null ? target : 0;
+            }
+            // Patterns that end at the failure state also end here, its outputs are complete by now
+            if (state != 0) {
+                for (int id : outputs.get(failure[state])) {
+                    outputs.set(state, append(outputs.get(state), id));
+                }
+            }
+        }
+    }
+
+    private static int[] append(int[] array, int value) {
+        int[] result = new int[array.length + 1];
+        System.arraycopy(array, 0, result, 0, array.length);
+        result[array.length] = value;
+        return result;
+    }
+
+    /**
+     * Get the ID of a pattern in the sets returned by {@link #match(String)}, or -1 if unknown.
+     */
+    int idOf(TextPattern pattern) {
+        Integer id = ids.get(pattern);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Get the IDs of all patterns that match a string.
+     */
+    BitSet match(String text) {
+        BitSet matched = new BitSet(patterns.size());
+        int length = text.length();
+        int state = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            Integer next;
+            while ((next = transitions.get(state).get(c)) == null && state != 0) {
+                state = failure[state];
+            }
+            state = next != null ? next : 0;
+            for (int id : outputs.get(state)) {
+                if (matched.get(id)) continue;
+                TextPattern pattern = patterns.get(id);
+                boolean atStart = i + 1 == pattern.value.length();
+                boolean atEnd = i + 1 == length;
+                switch (pattern.mode) {
+                    case TextPattern.EXACT:
+                        if (atStart && atEnd) matched.set(id);
+                        break;
+                    case TextPattern.PREFIX:
+                        if (atStart) matched.set(id);
+                        break;
+                    case TextPattern.SUFFIX:
+                        if (atEnd) matched.set(id);
+                        break;
+                    default:
+                        matched.set(id);
+                }
+            }
+        }
+
+        if (combinedRegex != null) {
+            Matcher matcher = combinedRegex.matcher(text);
+            if (matcher.find()) {
+                for (int id : regexIds) {
+                    if (patterns.get(id).regex.matcher(text).find()) matched.set(id);
+                }
+            }
+        }
+        for (int id : separateRegexIds) {
+            if (patterns.get(id).regex.matcher(text).find()) matched.set(id);
+        }
+        return matched;
+    }
+}
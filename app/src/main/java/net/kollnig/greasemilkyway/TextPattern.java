@@ -0,0 +1,97 @@
+package net.kollnig.greasemilkyway;
+
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+/**
+ * A pattern for a content description or text, which matches exactly, by prefix, by suffix,
+ * by substring or by regular expression.
+ */
+class TextPattern {
+    static final int EXACT = 0;
+    static final int PREFIX = 1;
+    static final int SUFFIX = 2;
+    static final int CONTAINS = 3;
+    static final int REGEX = 4;
+
+    final int mode;
+    final String value;
+    // Compiled expression, only for REGEX
+    final Pattern regex;
+
+    TextPattern(int mode, String value) {
+        this.mode = mode;
+        this.value = value;
+        this.regex = mode == REGEX ? Pattern.compile(value) : null;
+    }
+
+    /**
+     * Parses a pattern in rule syntax: Shorts* matches by prefix, *Shorts by suffix, *Shorts* by
+     * substring and /Sho?rts/ by regular expression; anything else matches exactly.
+     *
+     * @throws java.util.regex.PatternSyntaxException if a regular expression is malformed
+     */
+    static TextPattern parse(String pattern) {
+        int length = pattern.length();
+        if (length >= 2 && pattern.startsWith("/") && pattern.endsWith("/")) {
+            return new TextPattern(REGEX, pattern.substring(1, length - 1));
+        }
+        boolean leading = length >= 2 && pattern.startsWith("*");
+        boolean trailing = length >= 2 && pattern.endsWith("*");
+        if (leading && trailing && length >= 3) {
+            return new TextPattern(CONTAINS, pattern.substring(1, length - 1));
+        } else if (leading) {
+            return new TextPattern(SUFFIX, pattern.substring(1));
+        } else if (trailing) {
+            return new TextPattern(PREFIX, pattern.substring(0, length - 1));
+        }
+        return new TextPattern(EXACT, pattern);
+    }
+
+    /**
+     * Match a single string, without a {@link TextMatcher}.
+     */
+    boolean matches(String text) {
+        switch (mode) {
+            case PREFIX:
+                return text.startsWith(value);
+            case SUFFIX:
+                return text.endsWith(value);
+            case CONTAINS:
+                return text.contains(value);
+            case REGEX:
+                return regex.matcher(text).find();
+            default:
+                return text.equals(value);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TextPattern that = (TextPattern) o;
+        return mode == that.mode && value.equals(that.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mode, value);
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+            case PREFIX:
+                return value + "*";
+            case SUFFIX:
+                return "*" + value;
+            case CONTAINS:
+                return "*" + value + "*";
+            case REGEX:
+                return "/" + value + "/";
+            default:
+                return value;
+        }
+    }
+}
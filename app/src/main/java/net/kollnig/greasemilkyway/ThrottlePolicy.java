@@ -0,0 +1,127 @@
+package net.kollnig.greasemilkyway;
+
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * Decides how eagerly the screen is scanned, depending on the state of the device.
+ * Scans are suspended while the screen is off. In power save mode, in device idle mode or when the
+ * device is getting hot, events are debounced for longer and scrolling no longer triggers scans;
+ * overlays then follow scrolled content by translation only.
+ * <p>
+ * The state is read from a {@link StateSource} on {@link #refresh()} only, so that the policy can
+ * be queried on every event without system calls.
+ */
+class ThrottlePolicy {
+    private static final int CONSTRAINED_DELAY_MS = 100;
+    private static final int HOT_DELAY_MS = 250;
+
+    /**
+     * Source of the device state, injected so that the policy can be tested without a device.
+     */
+    interface StateSource {
+        boolean isScreenOn();
+
+        boolean isPowerSaveMode();
+
+        boolean isIdle();
+
+        /**
+         * @return One of the PowerManager.THERMAL_STATUS_* constants
+         */
+        int getThermalStatus();
+    }
+
+    private final StateSource source;
+    private boolean screenOn = true;
+    private boolean powerSave;
+    private boolean idle;
+    private int thermalStatus = PowerManager.THERMAL_STATUS_NONE;
+
+    ThrottlePolicy(StateSource source) {
+        this.source = source;
+        refresh();
+    }
+
+    /**
+     * State source backed by the power manager.
+     */
+    static StateSource of(PowerManager powerManager) {
+        return new StateSource() {
+            @Override
+            public boolean isScreenOn() {
+                return powerManager.isInteractive();
+            }
+
+            @Override
+            public boolean isPowerSaveMode() {
+                return powerManager.isPowerSaveMode();
+            }
+
+            @Override
+            public boolean isIdle() {
+                return powerManager.isDeviceIdleMode();
+            }
+
+            @Override
+            public int getThermalStatus() {
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                        ? powerManager.getCurrentThermalStatus() : PowerManager.THERMAL_STATUS_NONE;
+            }
+        };
+    }
+
+    /**
+     * Read the device state again, e.g. after a broadcast announced that it changed.
+     *
+     * @return Whether the screen has just been turned on
+     */
+    boolean refresh() {
+        boolean wasScreenOn = screenOn;
+        screenOn = source.isScreenOn();
+        powerSave = source.isPowerSaveMode();
+        idle = source.isIdle();
+        thermalStatus = source.getThermalStatus();
+        return screenOn && !wasScreenOn;
+    }
+
+    /**
+     * Whether no scans should run at all.
+     */
+    boolean isSuspended() {
+        return !screenOn;
+    }
+
+    /**
+     * Whether the device is short on power or cooling.
+     */
+    boolean isConstrained() {
+        return powerSave || idle || thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE;
+    }
+
+    /**
+     * Get how long to wait for further events before scanning.
+     *
+     * @param delayMs Delay when the device is not constrained
+     */
+    int getDebounceMs(int delayMs) {
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE) return Math.max(delayMs, HOT_DELAY_MS);
+        if (isConstrained()) return Math.max(delayMs, CONSTRAINED_DELAY_MS);
+        return delayMs;
+    }
+
+    /**
+     * Whether scrolling should trigger a scan, rather than only moving the overlays along.
+     */
+    boolean shouldRescanOnScroll() {
+        return !isConstrained();
+    }
+
+    /**
+     * Describe the device state last read, for logging.
+     */
+    String describe() {
+        return "Screen on " + screenOn + ", power save " + powerSave + ", idle " + idle
+                + ", thermal status " + thermalStatus;
+    }
+}
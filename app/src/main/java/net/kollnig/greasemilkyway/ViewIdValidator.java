@@ -0,0 +1,132 @@
+package net.kollnig.greasemilkyway;
+
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks the view IDs of rules against the resource table of the installed target app.
+ * Rules pointing at IDs that do not exist in the app can never match and are skipped by the service.
+ */
+class ViewIdValidator {
+    private static final String TAG = "ViewIdValidator";
+
+    private final PackageManager packageManager;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // Keys of rules whose view ID is missing from the installed app, see {@link #key(FilterRule)}
+    private final Set<String> missing = ConcurrentHashMap.newKeySet();
+
+    ViewIdValidator(PackageManager packageManager) {
+        this.packageManager = packageManager;
+    }
+
+    /**
+     * Validate all rules in the background, replacing any previous results.
+     */
+    void validate(List<FilterRule> rules) {
+        List<FilterRule> snapshot = new ArrayList<>(rules);
+        executor.execute(() -> {
+            List<FilterRule> found = findMissing(packageManager, snapshot);
+            missing.clear();
+            for (FilterRule rule : found) {
+                missing.add(key(rule));
+            }
+            Log.i(TAG, "Validated " + snapshot.size() + " rule(s), " + found.size() + " with missing view IDs");
+        });
+    }
+
+    /**
+     * Validate the rules of a single package in the background, e.g. after it has been updated.
+     */
+    void validatePackage(String packageName, List<FilterRule> rules) {
+        List<FilterRule> snapshot = new ArrayList<>();
+        for (FilterRule rule : rules) {
+            if (rule.packageName.equals(packageName)) {
+                snapshot.add(rule);
+            }
+        }
+        executor.execute(() -> {
+            List<FilterRule> found = findMissing(packageManager, snapshot);
+            missing.removeIf(key -> key.startsWith(packageName + "|"));
+            for (FilterRule rule : found) {
+                missing.add(key(rule));
+            }
+            Log.i(TAG, "Revalidated " + packageName + ", " + found.size() + " rule(s) with missing view IDs");
+        });
+    }
+
+    /**
+     * Whether the view ID of a rule is known not to exist in the installed app.
+     */
+    boolean isMissing(FilterRule rule) {
+        return rule.targetViewId != null && !rule.targetViewId.isEmpty() && missing.contains(key(rule));
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Find all rules whose view ID does not exist in the installed target app.
+     * Rules for apps that are not installed cannot be checked and are never reported.
+     * This resolves resources and should not be called on the UI thread.
+     */
+    static List<FilterRule> findMissing(PackageManager packageManager, List<FilterRule> rules) {
+        List<FilterRule> found = new ArrayList<>();
+        Map<String, Resources> resourcesByPackage = new HashMap<>();
+        for (FilterRule rule : rules) {
+            if (rule.targetViewId == null || rule.targetViewId.isEmpty()) continue;
+            // Package globs can span several apps with different resources
+            if (rule.isPackagePattern()) continue;
+
+            Resources resources;
+            if (resourcesByPackage.containsKey(rule.packageName)) {
+                resources = resourcesByPackage.get(rule.packageName);
+            } else {
+                try {
+                    resources = packageManager.getResourcesForApplication(rule.packageName);
+                } catch (PackageManager.NameNotFoundException e) {
+                    resources = null;
+                }
+                resourcesByPackage.put(rule.packageName, resources);
+            }
+            if (resources == null) continue;
+
+            if (!exists(resources, rule.packageName, rule.targetViewId)) {
+                Log.d(TAG, "View ID " + rule.targetViewId + " does not exist in " + rule.packageName);
+                found.add(rule);
+            }
+        }
+        return found;
+    }
+
+    private static boolean exists(Resources resources, String packageName, String viewId) {
+        // View IDs are reported as <package>:id/<name>, the package may differ from the app for library IDs
+        String resourcePackage = packageName;
+        String name = viewId;
+        int separator = viewId.indexOf(":id/");
+        if (separator >= 0) {
+            resourcePackage = viewId.substring(0, separator);
+            name = viewId.substring(separator + ":id/".length());
+        }
+        try {
+            return resources.getIdentifier(name, "id", resourcePackage) != 0;
+        } catch (Exception e) {
+            Log.w(TAG, "Could not resolve view ID " + viewId, e);
+            return true;
+        }
+    }
+
+    private static String key(FilterRule rule) {
+        return rule.packageName + "|" + rule.targetViewId;
+    }
+}
@@ -0,0 +1,111 @@
+package net.kollnig.greasemilkyway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.PowerManager;
+
+import org.junit.Test;
+
+public class ThrottlePolicyTest {
+    private static final int DELAY_MS = 50;
+
+    /**
+     * Device state set by the test.
+     */
+    private static class FakeState implements ThrottlePolicy.StateSource {
+        boolean screenOn = true;
+        boolean powerSave;
+        boolean idle;
+        int thermalStatus = PowerManager.THERMAL_STATUS_NONE;
+
+        @Override
+        public boolean isScreenOn() {
+            return screenOn;
+        }
+
+        @Override
+        public boolean isPowerSaveMode() {
+            return powerSave;
+        }
+
+        @Override
+        public boolean isIdle() {
+            return idle;
+        }
+
+        @Override
+        public int getThermalStatus() {
+            return thermalStatus;
+        }
+    }
+
+    @Test
+    public void unconstrained() {
+        ThrottlePolicy policy = new ThrottlePolicy(new FakeState());
+        assertFalse(policy.isSuspended());
+        assertFalse(policy.isConstrained());
+        assertEquals(DELAY_MS, policy.getDebounceMs(DELAY_MS));
+        assertTrue(policy.shouldRescanOnScroll());
+    }
+
+    @Test
+    public void screenOff() {
+        FakeState state = new FakeState();
+        ThrottlePolicy policy = new ThrottlePolicy(state);
+        state.screenOn = false;
+        assertFalse(policy.refresh());
+        assertTrue(policy.isSuspended());
+
+        state.screenOn = true;
+        assertTrue(policy.refresh());
+        assertFalse(policy.isSuspended());
+        assertFalse(policy.refresh());
+    }
+
+    @Test
+    public void powerSave() {
+        FakeState state = new FakeState();
+        state.powerSave = true;
+        assertConstrained(new ThrottlePolicy(state), 100);
+    }
+
+    @Test
+    public void idle() {
+        FakeState state = new FakeState();
+        state.idle = true;
+        assertConstrained(new ThrottlePolicy(state), 100);
+    }
+
+    @Test
+    public void thermal() {
+        FakeState state = new FakeState();
+        state.thermalStatus = PowerManager.THERMAL_STATUS_LIGHT;
+        ThrottlePolicy policy = new ThrottlePolicy(state);
+        assertFalse(policy.isConstrained());
+        assertEquals(DELAY_MS, policy.getDebounceMs(DELAY_MS));
+
+        state.thermalStatus = PowerManager.THERMAL_STATUS_MODERATE;
+        policy.refresh();
+        assertConstrained(policy, 100);
+
+        state.thermalStatus = PowerManager.THERMAL_STATUS_SEVERE;
+        policy.refresh();
+        assertConstrained(policy, 250);
+    }
+
+    @Test
+    public void longerDelayIsKept() {
+        FakeState state = new FakeState();
+        state.powerSave = true;
+        assertEquals(500, new ThrottlePolicy(state).getDebounceMs(500));
+    }
+
+    private static void assertConstrained(ThrottlePolicy policy, int debounceMs) {
+        assertFalse(policy.isSuspended());
+        assertTrue(policy.isConstrained());
+        assertEquals(debounceMs, policy.getDebounceMs(DELAY_MS));
+        assertFalse(policy.shouldRescanOnScroll());
+    }
+}